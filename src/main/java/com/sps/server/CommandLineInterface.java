@@ -3,6 +3,8 @@ package com.sps.server;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.util.Optional;
 
 public class CommandLineInterface {
@@ -18,6 +20,8 @@ public class CommandLineInterface {
                 .sslEnabled(getEnvOpt("SPS_SSL_ENABLED").map(Boolean::valueOf).orElse(false))
                 .sslCertPassword(getEnvOpt("SPS_SSL_CERT_PASSWORD").orElse(null))
                 .keystoreInputStream(getEnvOpt("SPS_SSL_CERT_FILE").map(CommandLineInterface::openStream).orElse(null))
+                .journalFile(getEnvOpt("SPS_JOURNAL_FILE").map(File::new).orElse(null))
+                .leaderUrl(getEnvOpt("SPS_LEADER_URL").map(CommandLineInterface::parseUrl).orElse(null))
                 .build();
         server.run();
     }
@@ -37,4 +41,12 @@ public class CommandLineInterface {
             throw new RuntimeException(e);
         }
     }
+
+    private static URL parseUrl(String url) {
+        try {
+            return new URL(url);
+        } catch (MalformedURLException e) {
+            throw new RuntimeException(e);
+        }
+    }
 }
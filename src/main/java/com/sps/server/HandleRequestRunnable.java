@@ -1,18 +1,23 @@
 package com.sps.server;
 
+import com.sps.server.http2.Http2Connection;
 import com.sps.server.model.Request;
 import com.sps.server.model.Response;
 import com.sps.server.model.StatusCode;
 import lombok.RequiredArgsConstructor;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import javax.net.ssl.SSLSocket;
 import java.io.*;
 import java.net.Socket;
 import java.nio.charset.Charset;
-import java.nio.file.Files;
 import java.util.Base64;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 
 @RequiredArgsConstructor
 public class HandleRequestRunnable implements Runnable {
@@ -20,37 +25,112 @@ public class HandleRequestRunnable implements Runnable {
     private final boolean httpAuthEnabled;
     private final String httpAuthUser;
     private final String httpAuthPassword;
-    private final File rootFile;
+    private final SiteFiles siteFiles;
+    /** null when journaling is off */
+    private final Journal journal;
+    /** followers only change the site by replaying the leader's journal */
+    private final boolean readOnly;
+    /** bounds how many request threads followers' journal polls may hold while waiting for new entries */
+    private final Semaphore journalWaitSlots;
+    /** runs the requests multiplexed on HTTP/2 connections */
+    private final ExecutorService streamExecutorService;
+    /** how many of those threads one HTTP/2 connection may use at once */
+    private final int http2ConnectionThreads;
+    /** reads frames for each open HTTP/2 connection */
+    private final ExecutorService http2ExecutorService;
 
     @Override
     public void run() {
+        boolean handedOff = false;
         try {
-            try (InputStream is = client.getInputStream(); OutputStream os = client.getOutputStream()) {
-                try {
-                    Optional<Request> request = Request.from(is);
-                    if (request.isPresent()) {
-                        Response response = handleRequest(request.get());
-                        response.writeTo(os);
+            // closing the socket closes these
+            PushbackInputStream is =
+                    new PushbackInputStream(client.getInputStream(), Http2Connection.PREFACE_LENGTH);
+            OutputStream os = client.getOutputStream();
+            try {
+                if (Http2Connection.readPreface(is)) {
+                    Http2Connection connection = newHttp2Connection(is, os);
+                    connection.start();
+                    handedOff = handOff(connection);
+                    return;
+                }
+                Optional<Request> request = Request.from(is);
+                if (request.isPresent()) {
+                    // h2c is cleartext only (RFC 7540 section 3.2); over TLS, HTTP/2 is negotiated with ALPN
+                    Optional<String> http2Settings = client instanceof SSLSocket
+                            ? Optional.empty() : Http2Connection.getUpgradeSettings(request.get());
+                    if (http2Settings.isPresent()) {
+                        Http2Connection connection = newHttp2Connection(is, os);
+                        connection.startUpgrade(request.get(), http2Settings.get());
+                        handedOff = handOff(connection);
+                        return;
                     }
-                    // else: empty request..
-                } catch (ParseException e) {
-                    e.printStackTrace();
-                    new Response(e.getStatus(), null).writeTo(os);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    new Response(StatusCode.INTERNAL_ERROR, null).writeTo(os);
+                    Response response = handleRequest(request.get());
+                    response.writeTo(os);
                 }
+                // else: empty request..
+            } catch (ParseException e) {
+                e.printStackTrace();
+                new Response(e.getStatus(), null).writeTo(os);
+            } catch (Exception e) {
+                e.printStackTrace();
+                new Response(StatusCode.INTERNAL_ERROR, null).writeTo(os);
             }
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
-            try {
-                if (client != null) {
-                    client.close();
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
+            if (!handedOff) {
+                closeClient();
+            }
+        }
+    }
+
+    private void closeClient() {
+        try {
+            if (client != null) {
+                client.close();
             }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private Http2Connection newHttp2Connection(InputStream is, OutputStream os) {
+        return new Http2Connection(client, is, os, streamExecutorService, http2ConnectionThreads, this::respond);
+    }
+
+    /**
+     * Give a started HTTP/2 connection a thread of its own, so that this worker is free for other clients while
+     * the connection sits idle. Returns false, having turned the connection away, if there are too many.
+     */
+    private boolean handOff(Http2Connection connection) {
+        try {
+            http2ExecutorService.execute(() -> {
+                try {
+                    connection.run();
+                } finally {
+                    closeClient();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            connection.refuse();
+            return false;
+        }
+    }
+
+    /**
+     * Handle a request from an HTTP/2 stream, where errors are reported as a response rather than written out.
+     */
+    private Response respond(Request request) {
+        try {
+            return handleRequest(request);
+        } catch (ParseException e) {
+            e.printStackTrace();
+            return new Response(e.getStatus(), null);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return new Response(StatusCode.INTERNAL_ERROR, null);
         }
     }
 
@@ -109,7 +189,7 @@ public class HandleRequestRunnable implements Runnable {
             url += "index.html";
         }
 
-        Optional<byte[]> file = readFile(url);
+        Optional<byte[]> file = siteFiles.readFile(url);
         if (file.isPresent()) {
             return new Response(StatusCode.OK, file.get());
         } else {
@@ -121,22 +201,15 @@ public class HandleRequestRunnable implements Runnable {
         try {
             JSONObject body = new JSONObject(new String(request.readBody()));
             String command = body.getString("command");
+            if (SiteFiles.isMutation(command)) {
+                return handleMutation(body);
+            }
             switch (command) {
-                case "edit": {
-                    String content = body.getString("content");
-                    String filename = body.getString("filename");
-                    writeFile(filename, content);
-                    return new Response(StatusCode.OK, null);
-                }
-                case "create": {
-                    String filename = body.getString("filename");
-                    return createFile(filename);
-                }
                 case "list": {
                     return listFiles();
                 }
-                case "delete": {
-                    return deleteFile(body.getString("filename"));
+                case "journal": {
+                    return readJournal(body.getLong("after"), body.optInt("limit", JournalFollower.BATCH_SIZE));
                 }
                 default:
                     return new Response(StatusCode.BAD_REQUEST, "unknown command".getBytes());
@@ -147,92 +220,45 @@ public class HandleRequestRunnable implements Runnable {
         }
     }
 
-    private Optional<byte[]> readFile(String filename) throws IOException {
-        Optional<File> file = getFile(filename);
-        if (file.isPresent()) {
-            return Optional.of(Files.readAllBytes(file.get().toPath()));
-        }
-        return Optional.empty();
-    }
-
-    private void writeFile(String filename, String content) throws IOException {
-        Optional<File> file = getFile(filename);
-        if (!file.isPresent()) {
-            throw new RuntimeException("could not find file " + filename);
+    private Response handleMutation(JSONObject body) throws IOException {
+        if (readOnly) {
+            return new Response(StatusCode.FORBIDDEN, "replica is read only".getBytes());
         }
-
-        try (FileOutputStream fos = new FileOutputStream(file.get())) {
-            fos.write(content.getBytes());
-            fos.close();
+        if (journal == null) {
+            return siteFiles.apply(body);
         }
+        JSONObject entry = new JSONObject(body, new String[]{"command", "filename", "content"});
+        return journal.append(entry);
     }
 
-    private Response createFile(String filename) throws IOException {
-        File file = new File(rootFile, filename);
-        if (!isChild(rootFile, file)) {
-            return new Response(StatusCode.BAD_REQUEST, "May not write to location".getBytes());
+    private Response readJournal(long after, int limit) throws IOException {
+        if (journal == null) {
+            return new Response(StatusCode.BAD_REQUEST, "journal is not enabled".getBytes());
         }
-        if (!file.exists()) {
-            File parent = file.getParentFile();
-            if (parent != null && !parent.exists()) {
-                if (!parent.mkdirs()) {
-                    return new Response(StatusCode.INTERNAL_ERROR, "failed to create".getBytes());
-                }
-            }
-            if (!file.createNewFile()) {
-                return new Response(StatusCode.INTERNAL_ERROR, "failed to create".getBytes());
-
-            }
+        if (after < 0) {
+            return new Response(StatusCode.BAD_REQUEST, "after may not be negative".getBytes());
         }
-        return new Response(StatusCode.OK, null);
-    }
-
-    private Optional<File> getFile(String filename) {
-        File file = new File(rootFile, filename);
-        if (!(isChild(rootFile, file) && file.exists())) {
-            return Optional.empty();
-        }
-        return Optional.of(file);
-    }
-
-    private boolean isChild(File parent, File child) {
-        return child.getAbsolutePath().startsWith(parent.getAbsolutePath());
-    }
-
-    private Response deleteFile(String filename) {
-        Optional<File> file = getFile(filename);
-        if (file.isPresent()) {
-            if (file.get().delete()) {
-                return new Response(StatusCode.OK, null);
+        limit = Math.max(1, Math.min(limit, JournalFollower.BATCH_SIZE));
+        JSONArray entries;
+        if (journalWaitSlots.tryAcquire()) {
+            try {
+                entries = journal.readAfter(after, limit, JournalFollower.LEADER_WAIT_MILLIS);
+            } finally {
+                journalWaitSlots.release();
             }
-            return new Response(StatusCode.INTERNAL_ERROR, "failed to delete".getBytes());
-        }
-        return new Response(StatusCode.NOT_FOUND, null);
-    }
-
-    private Response listFiles() {
-        try {
-            JSONObject listing = listFilesRecursive(rootFile);
-            JSONObject response = new JSONObject();
-            response.put("listing", listing);
-            return new Response(StatusCode.OK, response.toString().getBytes());
-        } catch (JSONException e) {
-            return new Response(StatusCode.INTERNAL_ERROR, "failed to list files".getBytes());
+        } else {
+            // enough threads are already waiting on the journal; answer now and leave this one for other clients
+            entries = journal.readAfter(after, limit, 0);
         }
+        JSONObject response = new JSONObject();
+        response.put("entries", entries);
+        return new Response(StatusCode.OK, response.toString().getBytes());
     }
 
-    private JSONObject listFilesRecursive(File me) throws JSONException {
-        JSONObject listing = new JSONObject();
-        for (File child : me.listFiles()) {
-            Object childListing = null;
-            if (child.isDirectory()) {
-                childListing = listFilesRecursive(child);
-            } else {
-                childListing = JSONObject.NULL;
-            }
-            listing.put(child.getName(), childListing);
-        }
-        return listing;
+    private Response listFiles() throws IOException {
+        JSONObject response = new JSONObject();
+        response.put("listing", siteFiles.list());
+        return new Response(StatusCode.OK, response.toString().getBytes());
     }
 
 //    private Response respondHeadersForTesting(Request request) throws IOException {
@@ -0,0 +1,390 @@
+package com.sps.server;
+
+import com.sps.server.model.Response;
+import com.sps.server.model.StatusCode;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Write-ahead log of the mutating commands applied to the site, one json object per line. The journal, not the
+ * site tree, is the source of truth: an entry is on disk before it is applied, and entries a crash kept from
+ * reaching the tree are applied again on startup.
+ *
+ * Entries are numbered from 1 with no gaps. Writers append under the write lock and then fsync outside it:
+ * whichever writer gets to the sync lock first forces everything written so far, and the writers queued behind
+ * it usually find their entry already durable (group commit). Entries are then applied strictly in journal
+ * order. Once no more are waiting, or every CHECKPOINT_ENTRIES entries or CHECKPOINT_CONTENT_LENGTH characters of
+ * content under steady load, the touched files are flushed and the last applied entry is saved in a checkpoint
+ * file next to the journal; startup replays whatever follows it.
+ *
+ * Replay may repeat entries that had in fact reached the tree. That is safe for entries that succeeded:
+ * repeating a run of them against the tree they left behind leaves that same tree. It is not safe for an entry
+ * that failed, since the entries after it can make it succeed the second time ("edit a.html" before
+ * "create a.html", or "delete dir" before "delete dir/f"). So a failed entry is checkpointed before the next
+ * one is applied, and replay only ever repeats it as the last entry, against the tree it failed on.
+ *
+ * Readers only ever see durable entries.
+ */
+public class Journal implements Closeable {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte NEWLINE = '\n';
+    private static final int READ_SOME_AMOUNT = 64 * 1024;
+    private static final int REPLAY_BATCH_SIZE = 500;
+    /** checkpoint at least this often, so that a busy journal still bounds how much a restart replays */
+    static final int CHECKPOINT_ENTRIES = 1000;
+    static final long CHECKPOINT_CONTENT_LENGTH = 16 * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final FileChannel checkpointChannel;
+    private final SiteFiles siteFiles;
+    private final Object writeLock = new Object();
+    private final Object syncLock = new Object();
+    private final Object applyLock = new Object();
+    /** offsets.get(i) is where entry i + 1 starts. Guarded by writeLock. */
+    private final List<Long> offsets = new ArrayList<>();
+    /** Guarded by writeLock. */
+    private long end;
+    /** Guarded by writeLock; written under both locks. */
+    private long durableSeq;
+    /** Guarded by applyLock. */
+    private long appliedSeq;
+    /** commands applied since the last checkpoint, without their content. Guarded by applyLock. */
+    private final List<JSONObject> uncheckpointed = new ArrayList<>();
+    /** length of the content those commands wrote. Guarded by applyLock. */
+    private long uncheckpointedContentLength;
+    /** how many times the journal has been forced to disk. Guarded by syncLock. */
+    private long syncCount;
+    /** set when an fsync fails, after which nothing on disk can be trusted */
+    private volatile boolean failed;
+
+    public Journal(File file, SiteFiles siteFiles) throws IOException {
+        this.channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.checkpointChannel = FileChannel.open(new File(file.getPath() + ".checkpoint").toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.siteFiles = siteFiles;
+        recover();
+        replay();
+    }
+
+    public long getLastSeq() {
+        synchronized (writeLock) {
+            return offsets.size();
+        }
+    }
+
+    /**
+     * Record the entry and, once it is on disk, apply it to the site. Entries are recorded whether or not
+     * applying them succeeds; one that fails changes nothing, here or on a follower.
+     */
+    public Response append(JSONObject entry) throws IOException {
+        long seq;
+        synchronized (writeLock) {
+            checkNotFailed();
+            seq = offsets.size() + 1;
+            write(seq, entry);
+        }
+        sync(seq);
+        synchronized (applyLock) {
+            awaitTurn(seq);
+            Response response = null;
+            try {
+                response = siteFiles.apply(entry);
+                return response;
+            } finally {
+                applied(entry, response != null && response.getStatus() == StatusCode.OK);
+            }
+        }
+    }
+
+    /**
+     * Record and apply a batch of entries copied from another journal, with a single fsync. Entries are
+     * recorded even if applying them fails here, since the sequence numbers must line up with the leader's.
+     */
+    public void replicate(JSONArray entries) throws IOException {
+        if (entries.length() == 0) {
+            return;
+        }
+        long firstSeq;
+        long lastSeq;
+        synchronized (writeLock) {
+            checkNotFailed();
+            firstSeq = offsets.size() + 1;
+            for (int i = 0; i < entries.length(); ++i) {
+                long seq = entries.getJSONObject(i).getLong("seq");
+                if (seq != firstSeq + i) {
+                    throw new IOException("expected journal entry " + (firstSeq + i) + " but got " + seq);
+                }
+            }
+            for (int i = 0; i < entries.length(); ++i) {
+                write(firstSeq + i, entries.getJSONObject(i));
+            }
+            lastSeq = offsets.size();
+        }
+        sync(lastSeq);
+        synchronized (applyLock) {
+            awaitTurn(firstSeq);
+            for (int i = 0; i < entries.length(); ++i) {
+                JSONObject entry = entries.getJSONObject(i);
+                applied(entry, applyLogged(entry));
+            }
+        }
+    }
+
+    /**
+     * Return up to limit durable entries following "after". If there are none yet, wait up to waitMillis for
+     * some to arrive.
+     */
+    public JSONArray readAfter(long after, int limit, long waitMillis) throws IOException {
+        long from;
+        long to;
+        synchronized (writeLock) {
+            long deadline = System.currentTimeMillis() + waitMillis;
+            long remaining = waitMillis;
+            while (durableSeq <= after && remaining > 0) {
+                try {
+                    writeLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+            if (durableSeq <= after) {
+                return new JSONArray();
+            }
+            long last = Math.min(durableSeq, after + limit);
+            from = offsetOf(after);
+            to = offsetOf(last);
+        }
+
+        JSONArray entries = new JSONArray();
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.min(READ_SOME_AMOUNT, to - from));
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        long position = from;
+        while (position < to) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), to - position));
+            int read = channel.read(buf, position);
+            if (read == -1) {
+                throw new IOException("journal is shorter than expected");
+            }
+            position += read;
+            for (int i = 0; i < read; ++i) {
+                byte b = buf.get(i);
+                if (b == NEWLINE) {
+                    entries.put(new JSONObject(new String(line.toByteArray(), UTF_8)));
+                    line.reset();
+                } else {
+                    line.write(b);
+                }
+            }
+        }
+        return entries;
+    }
+
+    long getSyncCount() {
+        synchronized (syncLock) {
+            return syncCount;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        checkpointChannel.close();
+    }
+
+    private long offsetOf(long seq) {
+        return seq < offsets.size() ? offsets.get((int) seq) : end;
+    }
+
+    private void write(long seq, JSONObject entry) throws IOException {
+        entry.put("seq", seq);
+        ByteBuffer buf = ByteBuffer.wrap((entry.toString() + "\n").getBytes(UTF_8));
+        long position = end;
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+        offsets.add(end);
+        end = position;
+    }
+
+    private void sync(long seq) throws IOException {
+        synchronized (syncLock) {
+            if (durableSeq >= seq) {
+                return;
+            }
+            long targetSeq;
+            synchronized (writeLock) {
+                targetSeq = offsets.size();
+            }
+            try {
+                channel.force(false);
+            } catch (IOException e) {
+                fail();
+                throw e;
+            }
+            ++syncCount;
+            synchronized (writeLock) {
+                durableSeq = targetSeq;
+                writeLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Index the existing entries and cut off a trailing partial line left by a crash mid-write.
+     */
+    private void recover() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(READ_SOME_AMOUNT);
+        long position = 0;
+        long lineStart = 0;
+        int read;
+        while ((read = channel.read(buf, position)) > 0) {
+            for (int i = 0; i < read; ++i) {
+                if (buf.get(i) == NEWLINE) {
+                    offsets.add(lineStart);
+                    lineStart = position + i + 1;
+                }
+            }
+            position += read;
+            buf.clear();
+        }
+        if (lineStart < channel.size()) {
+            System.out.format("truncating partial journal entry at offset %d%n", lineStart);
+            channel.truncate(lineStart);
+        }
+        end = lineStart;
+        durableSeq = offsets.size();
+    }
+
+    /**
+     * Apply the entries after the checkpoint. The journal has already been recovered, so they are all durable.
+     */
+    private void replay() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(8);
+        while (checkpointChannel.read(buf, buf.position()) > 0 && buf.hasRemaining()) {
+            // keep reading
+        }
+        long checkpointSeq = buf.hasRemaining() ? 0 : buf.getLong(0);
+        if (checkpointSeq > offsets.size()) {
+            throw new IOException("journal checkpoint is at entry " + checkpointSeq
+                    + " but the journal only has " + offsets.size());
+        }
+        synchronized (applyLock) {
+            appliedSeq = checkpointSeq;
+            if (appliedSeq < offsets.size()) {
+                System.out.format("replaying journal entries %d to %d%n", appliedSeq + 1, offsets.size());
+            }
+            while (appliedSeq < offsets.size()) {
+                JSONArray entries = readAfter(appliedSeq, REPLAY_BATCH_SIZE, 0);
+                for (int i = 0; i < entries.length(); ++i) {
+                    JSONObject entry = entries.getJSONObject(i);
+                    applied(entry, applyLogged(entry));
+                }
+                if (!uncheckpointed.isEmpty()) {
+                    checkpoint();
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait until every entry before seq has been applied. Called holding applyLock.
+     */
+    private void awaitTurn(long seq) throws IOException {
+        boolean interrupted = false;
+        // a turn can't be given up, so wait it out even if interrupted
+        while (appliedSeq < seq - 1) {
+            checkNotFailed();
+            try {
+                applyLock.wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Apply an entry that was already recorded, logging rather than throwing on failure. Returns whether it
+     * succeeded.
+     */
+    private boolean applyLogged(JSONObject entry) {
+        long seq = entry.getLong("seq");
+        try {
+            Response response = siteFiles.apply(entry);
+            if (response.getStatus() != StatusCode.OK) {
+                System.out.format("journal entry %d did not apply cleanly: %s%n", seq, response.getStatus());
+                return false;
+            }
+            return true;
+        } catch (Exception e) {
+            System.out.format("journal entry %d failed to apply: %s%n", seq, e);
+            return false;
+        }
+    }
+
+    /**
+     * Mark the next entry applied and checkpoint if it failed, no later entry has been written or enough has
+     * built up since the last checkpoint. Called holding applyLock.
+     */
+    private void applied(JSONObject entry, boolean succeeded) throws IOException {
+        ++appliedSeq;
+        uncheckpointed.add(new JSONObject(entry, new String[]{"command", "filename"}));
+        uncheckpointedContentLength += entry.optString("content").length();
+        applyLock.notifyAll();
+        if (!succeeded || appliedSeq == getLastSeq() || uncheckpointed.size() >= CHECKPOINT_ENTRIES
+                || uncheckpointedContentLength >= CHECKPOINT_CONTENT_LENGTH) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Flush what the applied entries changed in the site, then record that they need no replay.
+     */
+    private void checkpoint() throws IOException {
+        siteFiles.sync(uncheckpointed);
+        uncheckpointed.clear();
+        uncheckpointedContentLength = 0;
+        ByteBuffer buf = ByteBuffer.allocate(8);
+        buf.putLong(appliedSeq);
+        buf.flip();
+        while (buf.hasRemaining()) {
+            checkpointChannel.write(buf, buf.position());
+        }
+        try {
+            checkpointChannel.force(false);
+        } catch (IOException e) {
+            fail();
+            throw e;
+        }
+    }
+
+    private void fail() {
+        failed = true;
+        synchronized (applyLock) {
+            applyLock.notifyAll();
+        }
+    }
+
+    private void checkNotFailed() throws IOException {
+        if (failed) {
+            throw new IOException("journal is unusable after a failed fsync");
+        }
+    }
+}
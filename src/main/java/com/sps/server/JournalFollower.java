@@ -0,0 +1,118 @@
+package com.sps.server;
+
+import lombok.RequiredArgsConstructor;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Base64;
+
+/**
+ * Tails a leader's journal over http and replays the entries, in order, into the local journal and site.
+ *
+ * Each poll asks the leader for the entries after our last one; the leader holds the request open for up to
+ * LEADER_WAIT_MILLIS when it has nothing new, so a replica is normally behind by one round trip. A leader with
+ * too many followers already waiting answers at once instead, and then we poll again after BUSY_RETRY_MILLIS.
+ *
+ * Only changes made since the leader started journaling travel this way. A new follower's site root must start
+ * as a copy of the leader's root as it was when the leader's journal was created, and its journal must start
+ * empty.
+ */
+@RequiredArgsConstructor
+public class JournalFollower implements Runnable {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    static final int BATCH_SIZE = 500;
+    static final long LEADER_WAIT_MILLIS = 1000;
+    private static final long RETRY_MILLIS = 1000;
+    private static final long BUSY_RETRY_MILLIS = 100;
+    private static final int TIMEOUT_MILLIS = 10 * 1000;
+
+    private final URL leaderUrl;
+    private final String authUser;
+    private final String authPassword;
+    private final Journal journal;
+
+    private volatile boolean running;
+
+    @Override
+    public void run() {
+        running = true;
+        System.out.format("following %s from journal entry %d%n", leaderUrl, journal.getLastSeq());
+        while (running) {
+            try {
+                long started = System.currentTimeMillis();
+                JSONArray entries = fetch(journal.getLastSeq());
+                journal.replicate(entries);
+                if (entries.length() == 0 && System.currentTimeMillis() - started < LEADER_WAIT_MILLIS / 2) {
+                    // the leader didn't hold the poll open, don't spin
+                    sleep(BUSY_RETRY_MILLIS);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                sleep(RETRY_MILLIS);
+            }
+        }
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    private JSONArray fetch(long after) throws IOException {
+        JSONObject command = new JSONObject();
+        command.put("command", "journal");
+        command.put("after", after);
+        command.put("limit", BATCH_SIZE);
+        byte[] body = command.toString().getBytes(UTF_8);
+
+        HttpURLConnection connection = (HttpURLConnection) leaderUrl.openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(body.length);
+            if (authUser != null) {
+                String userAndPass = authUser + ":" + authPassword;
+                connection.setRequestProperty("Authorization",
+                        "Basic " + Base64.getEncoder().encodeToString(userAndPass.getBytes(UTF_8)));
+            }
+            try (OutputStream os = connection.getOutputStream()) {
+                os.write(body);
+            }
+            int status = connection.getResponseCode();
+            if (status != 200) {
+                throw new IOException("leader responded " + status);
+            }
+            try (InputStream is = connection.getInputStream()) {
+                return new JSONObject(new String(readAll(is), UTF_8)).getJSONArray("entries");
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
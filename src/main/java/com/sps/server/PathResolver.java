@@ -0,0 +1,191 @@
+package com.sps.server;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Maps request paths to files under the site root, refusing anything that would land outside it.
+ *
+ * Names are resolved lexically against the real root and compared component by component, so "../" and
+ * sibling directories sharing the root's prefix are rejected. Symlinks inside the site may be followed only
+ * while their target also lies inside the root. Lookups made for GET requests are cached; the cache is
+ * bounded, flushed whenever the server changes a file, and entries expire so changes made behind the
+ * server's back show up shortly.
+ */
+public class PathResolver {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int CACHE_SIZE = 10 * 1000;
+    private static final long CACHE_EXPIRY_MILLIS = 1000;
+
+    @RequiredArgsConstructor
+    @Getter
+    public static class ResolvedPath {
+        private final Path path;
+        private final boolean exists;
+        private final boolean regularFile;
+    }
+
+    @Getter
+    private final Path root;
+    private final Cache<String, Optional<ResolvedPath>> cache = CacheBuilder.newBuilder()
+            .maximumSize(CACHE_SIZE)
+            .expireAfterWrite(CACHE_EXPIRY_MILLIS, TimeUnit.MILLISECONDS)
+            .build();
+    /** bumped by every invalidate, so a lookup can tell that what it resolved may already be stale */
+    private final AtomicLong generation = new AtomicLong();
+
+    public PathResolver(File rootFile) throws IOException {
+        this.root = rootFile.toPath().toRealPath();
+    }
+
+    /**
+     * Resolve the path part of a request url, which may be percent-encoded. Empty if it is malformed or
+     * points outside the root.
+     */
+    public Optional<ResolvedPath> lookup(String urlPath) throws IOException {
+        Optional<ResolvedPath> resolved = cache.getIfPresent(urlPath);
+        if (resolved == null) {
+            long startGeneration = generation.get();
+            Optional<String> decoded = percentDecode(urlPath);
+            resolved = decoded.isPresent() ? resolve(decoded.get()) : Optional.empty();
+            cache.put(urlPath, resolved);
+            // if a file changed while we were resolving, its invalidate may have run before our put, so drop the
+            // entry again. The answer is still fine for this request, which raced with the change anyway.
+            if (generation.get() != startGeneration) {
+                cache.invalidate(urlPath);
+            }
+        }
+        return resolved;
+    }
+
+    /**
+     * Resolve a plain file name relative to the root, bypassing the cache. Empty if it points outside the root.
+     */
+    public Optional<ResolvedPath> resolve(String name) throws IOException {
+        if (name.indexOf('\0') != -1) {
+            return Optional.empty();
+        }
+        Path path;
+        try {
+            path = root.resolve(stripLeadingSlashes(name)).normalize();
+        } catch (InvalidPathException e) {
+            return Optional.empty();
+        }
+        if (!path.startsWith(root)) {
+            return Optional.empty();
+        }
+
+        // find the deepest part of the path that exists and make sure no symlink along it leaves the root
+        Path existing = path;
+        while (!Files.exists(existing, LinkOption.NOFOLLOW_LINKS)) {
+            existing = existing.getParent();
+            if (existing == null || !existing.startsWith(root)) {
+                return Optional.empty();
+            }
+        }
+        if (!realPathInRoot(existing).isPresent()) {
+            return Optional.empty();
+        }
+        // hand back the checked lexical path so that deleting a symlink removes the link, not its target
+        boolean exists = existing.equals(path);
+        return Optional.of(new ResolvedPath(path, exists, exists && Files.isRegularFile(path)));
+    }
+
+    /**
+     * Return where an existing path really leads, or empty if that is outside the root or a dangling symlink.
+     */
+    public Optional<Path> realPathInRoot(Path path) {
+        Path real;
+        try {
+            real = path.toRealPath();
+        } catch (IOException e) {
+            // dangling symlink, we can't tell where it leads
+            return Optional.empty();
+        }
+        return real.startsWith(root) ? Optional.of(real) : Optional.empty();
+    }
+
+    public void invalidate() {
+        generation.incrementAndGet();
+        cache.invalidateAll();
+    }
+
+    private static String stripLeadingSlashes(String name) {
+        int i = 0;
+        while (i < name.length() && (name.charAt(i) == '/' || name.charAt(i) == File.separatorChar)) {
+            ++i;
+        }
+        return name.substring(i);
+    }
+
+    /**
+     * Decode %XX escapes as utf-8. Unlike URLDecoder, '+' is left alone since this is a path, not a form.
+     */
+    static Optional<String> percentDecode(String encoded) {
+        if (encoded.indexOf('%') == -1) {
+            return Optional.of(encoded);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(encoded.length());
+        for (int i = 0; i < encoded.length(); ++i) {
+            if (encoded.charAt(i) != '%') {
+                int next = encoded.indexOf('%', i);
+                if (next == -1) {
+                    next = encoded.length();
+                }
+                byte[] raw = encoded.substring(i, next).getBytes(UTF_8);
+                bytes.write(raw, 0, raw.length);
+                i = next - 1;
+                continue;
+            }
+            if (i + 2 >= encoded.length()) {
+                return Optional.empty();
+            }
+            int high = hexValue(encoded.charAt(i + 1));
+            int low = hexValue(encoded.charAt(i + 2));
+            if (high == -1 || low == -1) {
+                return Optional.empty();
+            }
+            bytes.write((high << 4) | low);
+            i += 2;
+        }
+        try {
+            return Optional.of(UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(bytes.toByteArray()))
+                    .toString());
+        } catch (CharacterCodingException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static int hexValue(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+}
@@ -6,20 +6,35 @@ import lombok.Setter;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.TrustManagerFactory;
 import java.io.File;
 import java.io.InputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.net.URL;
 import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 @Builder
 public class Server implements Runnable {
+    /** idle HTTP/2 connections only cost a blocked thread, so allow more of them than request threads */
+    private static final int HTTP2_CONNECTIONS_PER_THREAD = 4;
+    /** followers' journal polls may hold at most one in this many request threads while they wait */
+    private static final int THREADS_PER_JOURNAL_WAIT = 4;
+
     private File rootFile;
     private int port;
     private int threads;
@@ -34,7 +49,13 @@ public class Server implements Runnable {
     @Setter
     private String httpAuthPassword;
 
+    /** Where mutating commands are journaled. Optional on a leader, required on a follower. */
+    private File journalFile;
+    /** When set this server is a read only follower of the server at this url. */
+    private URL leaderUrl;
+
     private boolean running;
+    private JournalFollower follower;
 
     @Override
     public void run() {
@@ -46,16 +67,52 @@ public class Server implements Runnable {
             Preconditions.checkNotNull(sslCertPassword);
             Preconditions.checkNotNull(keystoreInputStream);
         }
+        if (leaderUrl != null) {
+            Preconditions.checkNotNull(journalFile);
+        }
         ServerSocket server = null;
+        Journal journal = null;
+        List<ExecutorService> executorServices = new ArrayList<>();
         try {
             System.out.println("starting server");
             running = true;
+            SiteFiles siteFiles = new SiteFiles(new PathResolver(rootFile));
+            if (journalFile != null) {
+                journal = new Journal(journalFile, siteFiles);
+            }
+            if (leaderUrl != null) {
+                // replicas of a site share its credentials
+                follower = new JournalFollower(leaderUrl, httpAuthEnabled ? httpAuthUser : null,
+                        httpAuthPassword, journal);
+                Thread followerThread = new Thread(follower, "journal-follower");
+                followerThread.setDaemon(true);
+                followerThread.start();
+            }
             ExecutorService executorService = new ThreadPoolExecutor(
                     threads, threads, 1, TimeUnit.SECONDS,
                     new ArrayBlockingQueue<Runnable>(threads));
+            // each HTTP/2 connection has at most 100 streams in flight, which bounds this queue
+            ExecutorService streamExecutorService = new ThreadPoolExecutor(
+                    threads, threads, 1, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+            // so that one HTTP/2 client can't hold every one of those threads, say by never opening its window
+            int http2ConnectionThreads = Math.max(1, threads / 2);
+            // HTTP/2 connections stay open between requests, so each gets its own reader thread rather than
+            // holding one of the request threads above while idle
+            ExecutorService http2ExecutorService = new ThreadPoolExecutor(
+                    0, threads * HTTP2_CONNECTIONS_PER_THREAD, 1, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>());
+            executorServices.addAll(Arrays.asList(executorService, streamExecutorService, http2ExecutorService));
+            Semaphore journalWaitSlots = new Semaphore(Math.max(1, threads / THREADS_PER_JOURNAL_WAIT));
             if (sslEnabled) {
                 SSLContext sslContext = createSslContext();
-                server = sslContext.getServerSocketFactory().createServerSocket(port);
+                SSLServerSocket sslServer =
+                        (SSLServerSocket) sslContext.getServerSocketFactory().createServerSocket(port);
+                // offer HTTP/2 through ALPN; h2 clients then start with the connection preface
+                SSLParameters sslParameters = sslServer.getSSLParameters();
+                sslParameters.setApplicationProtocols(new String[]{"h2", "http/1.1"});
+                sslServer.setSSLParameters(sslParameters);
+                server = sslServer;
             } else {
                 server = new ServerSocket(port);
             }
@@ -74,8 +131,19 @@ public class Server implements Runnable {
                 }
 
                 Runnable requestRunnable = new HandleRequestRunnable(client, httpAuthEnabled, httpAuthUser,
-                        httpAuthPassword, rootFile);
-                executorService.submit(requestRunnable);
+                        httpAuthPassword, siteFiles, journal, leaderUrl != null, journalWaitSlots,
+                        streamExecutorService, http2ConnectionThreads, http2ExecutorService);
+                try {
+                    executorService.submit(requestRunnable);
+                } catch (RejectedExecutionException e) {
+                    // every worker is busy and the queue is full; shed this client rather than stop accepting
+                    System.out.println("server is busy, dropping a connection");
+                    try {
+                        client.close();
+                    } catch (Exception closeException) {
+                        closeException.printStackTrace();
+                    }
+                }
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -88,6 +156,20 @@ public class Server implements Runnable {
             } catch (Exception e) {
                 e.printStackTrace();
             }
+            if (follower != null) {
+                follower.stop();
+            }
+            // let requests in flight finish, but don't keep idle threads around
+            for (ExecutorService executorService : executorServices) {
+                executorService.shutdown();
+            }
+            try {
+                if (journal != null) {
+                    journal.close();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
         }
     }
 
@@ -0,0 +1,206 @@
+package com.sps.server;
+
+import com.sps.server.PathResolver.ResolvedPath;
+import com.sps.server.model.Response;
+import com.sps.server.model.StatusCode;
+import lombok.RequiredArgsConstructor;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Reads and mutates the files under the site root. Mutating commands are shared by client requests and by
+ * followers replaying a leader's journal, so both end up with the same tree.
+ */
+@RequiredArgsConstructor
+public class SiteFiles {
+    private final PathResolver resolver;
+
+    /**
+     * Apply a mutating command ("edit", "create" or "delete") as found in a POST body or journal entry.
+     */
+    public Response apply(JSONObject command) throws IOException {
+        try {
+            String filename = command.getString("filename");
+            switch (command.getString("command")) {
+                case "edit":
+                    writeFile(filename, command.getString("content"));
+                    return new Response(StatusCode.OK, null);
+                case "create":
+                    return createFile(filename);
+                case "delete":
+                    return deleteFile(filename);
+                default:
+                    return new Response(StatusCode.BAD_REQUEST, "unknown command".getBytes());
+            }
+        } catch (JSONException e) {
+            throw new ParseException(StatusCode.BAD_REQUEST, "command is missing a field");
+        } finally {
+            resolver.invalidate();
+        }
+    }
+
+    /**
+     * Flush to disk whatever these already applied commands changed: the edited file, or the directory entries
+     * added by a create or removed by a delete.
+     */
+    public void sync(List<JSONObject> commands) throws IOException {
+        Set<Path> paths = new LinkedHashSet<>();
+        for (JSONObject command : commands) {
+            Optional<ResolvedPath> resolved = resolver.resolve(command.optString("filename"));
+            if (!resolved.isPresent()) {
+                continue;
+            }
+            Path path = resolved.get().getPath();
+            switch (command.optString("command")) {
+                case "edit":
+                    paths.add(path);
+                    break;
+                case "create":
+                    // create may have made any of the parent directories too
+                    paths.add(path);
+                    for (Path dir = path.getParent(); dir != null && dir.startsWith(resolver.getRoot());
+                         dir = dir.getParent()) {
+                        paths.add(dir);
+                    }
+                    break;
+                case "delete":
+                    paths.add(path.getParent());
+                    break;
+            }
+        }
+        for (Path path : paths) {
+            force(path);
+        }
+    }
+
+    public static boolean isMutation(String command) {
+        return "edit".equals(command) || "create".equals(command) || "delete".equals(command);
+    }
+
+    /**
+     * Read the file at a (percent-encoded) request path.
+     */
+    public Optional<byte[]> readFile(String urlPath) throws IOException {
+        Optional<ResolvedPath> file = resolver.lookup(urlPath);
+        if (file.isPresent() && file.get().isRegularFile()) {
+            return Optional.of(Files.readAllBytes(file.get().getPath()));
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * List the site as nested objects: directories map each child's name to its listing, files map to null.
+     * Symlinks are followed only while they stay inside the root, as for reads, and never back into a
+     * directory being listed.
+     */
+    public JSONObject list() throws IOException {
+        Set<Path> ancestors = new HashSet<>();
+        ancestors.add(resolver.getRoot());
+        return list(resolver.getRoot(), ancestors);
+    }
+
+    private JSONObject list(Path dir, Set<Path> ancestors) throws IOException {
+        JSONObject listing = new JSONObject();
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+            for (Path child : children) {
+                Optional<Path> real = resolver.realPathInRoot(child);
+                if (!real.isPresent()) {
+                    continue;
+                }
+                String name = child.getFileName().toString();
+                if (Files.isDirectory(real.get())) {
+                    if (ancestors.add(real.get())) {
+                        listing.put(name, list(child, ancestors));
+                        ancestors.remove(real.get());
+                    }
+                } else {
+                    listing.put(name, JSONObject.NULL);
+                }
+            }
+        }
+        return listing;
+    }
+
+    private void writeFile(String filename, String content) throws IOException {
+        Optional<File> file = getFile(filename);
+        if (!file.isPresent()) {
+            throw new RuntimeException("could not find file " + filename);
+        }
+
+        try (FileOutputStream fos = new FileOutputStream(file.get())) {
+            fos.write(content.getBytes());
+            fos.close();
+        }
+    }
+
+    private Response createFile(String filename) throws IOException {
+        Optional<ResolvedPath> resolved = resolver.resolve(filename);
+        if (!resolved.isPresent()) {
+            return new Response(StatusCode.BAD_REQUEST, "May not write to location".getBytes());
+        }
+        File file = resolved.get().getPath().toFile();
+        if (!resolved.get().isExists()) {
+            File parent = file.getParentFile();
+            if (parent != null && !parent.exists()) {
+                if (!parent.mkdirs()) {
+                    return new Response(StatusCode.INTERNAL_ERROR, "failed to create".getBytes());
+                }
+            }
+            if (!file.createNewFile()) {
+                return new Response(StatusCode.INTERNAL_ERROR, "failed to create".getBytes());
+
+            }
+        }
+        return new Response(StatusCode.OK, null);
+    }
+
+    private Response deleteFile(String filename) throws IOException {
+        Optional<File> file = getFile(filename);
+        if (file.isPresent()) {
+            if (file.get().toPath().equals(resolver.getRoot())) {
+                return new Response(StatusCode.BAD_REQUEST, "May not delete the site root".getBytes());
+            }
+            if (file.get().delete()) {
+                return new Response(StatusCode.OK, null);
+            }
+            return new Response(StatusCode.INTERNAL_ERROR, "failed to delete".getBytes());
+        }
+        return new Response(StatusCode.NOT_FOUND, null);
+    }
+
+    private static void force(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            try (FileChannel dir = FileChannel.open(path, StandardOpenOption.READ)) {
+                dir.force(true);
+            } catch (IOException e) {
+                // not every platform can open or flush a directory
+            }
+        } else if (Files.isRegularFile(path)) {
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                file.force(true);
+            }
+        }
+    }
+
+    private Optional<File> getFile(String filename) throws IOException {
+        Optional<ResolvedPath> resolved = resolver.resolve(filename);
+        if (!(resolved.isPresent() && resolved.get().isExists())) {
+            return Optional.empty();
+        }
+        return Optional.of(resolved.get().getPath().toFile());
+    }
+}
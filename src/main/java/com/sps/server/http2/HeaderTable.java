@@ -0,0 +1,165 @@
+package com.sps.server.http2;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+/**
+ * The HPACK index space: the static table (RFC 7541 appendix A) followed by a size bounded dynamic table of
+ * recently indexed headers, newest first. Each side of a connection keeps its own copy. Names and values are
+ * ISO-8859-1 strings so that their length is their size in octets.
+ *
+ * not thread safe
+ */
+class HeaderTable {
+    /** per RFC 7541 4.1, every entry costs its name and value lengths plus 32 */
+    private static final int ENTRY_OVERHEAD = 32;
+    static final int DEFAULT_MAX_SIZE = 4096;
+
+    private static final String[][] STATIC_TABLE = {
+            {":authority", ""},
+            {":method", "GET"},
+            {":method", "POST"},
+            {":path", "/"},
+            {":path", "/index.html"},
+            {":scheme", "http"},
+            {":scheme", "https"},
+            {":status", "200"},
+            {":status", "204"},
+            {":status", "206"},
+            {":status", "304"},
+            {":status", "400"},
+            {":status", "404"},
+            {":status", "500"},
+            {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""},
+            {"accept-ranges", ""},
+            {"accept", ""},
+            {"access-control-allow-origin", ""},
+            {"age", ""},
+            {"allow", ""},
+            {"authorization", ""},
+            {"cache-control", ""},
+            {"content-disposition", ""},
+            {"content-encoding", ""},
+            {"content-language", ""},
+            {"content-length", ""},
+            {"content-location", ""},
+            {"content-range", ""},
+            {"content-type", ""},
+            {"cookie", ""},
+            {"date", ""},
+            {"etag", ""},
+            {"expect", ""},
+            {"expires", ""},
+            {"from", ""},
+            {"host", ""},
+            {"if-match", ""},
+            {"if-modified-since", ""},
+            {"if-none-match", ""},
+            {"if-range", ""},
+            {"if-unmodified-since", ""},
+            {"last-modified", ""},
+            {"link", ""},
+            {"location", ""},
+            {"max-forwards", ""},
+            {"proxy-authenticate", ""},
+            {"proxy-authorization", ""},
+            {"range", ""},
+            {"referer", ""},
+            {"refresh", ""},
+            {"retry-after", ""},
+            {"server", ""},
+            {"set-cookie", ""},
+            {"strict-transport-security", ""},
+            {"transfer-encoding", ""},
+            {"user-agent", ""},
+            {"vary", ""},
+            {"via", ""},
+            {"www-authenticate", ""},
+    };
+
+    private final Deque<String[]> dynamic = new ArrayDeque<>();
+    private int size;
+    private int maxSize = DEFAULT_MAX_SIZE;
+
+    /**
+     * Return the {name, value} at a 1 based index.
+     */
+    String[] get(int index) throws Http2Exception {
+        if (index >= 1 && index <= STATIC_TABLE.length) {
+            return STATIC_TABLE[index - 1];
+        }
+        int dynamicIndex = index - STATIC_TABLE.length - 1;
+        if (dynamicIndex >= 0 && dynamicIndex < dynamic.size()) {
+            Iterator<String[]> it = dynamic.iterator();
+            for (int i = 0; i < dynamicIndex; ++i) {
+                it.next();
+            }
+            return it.next();
+        }
+        throw Http2Exception.connection(Http2Exception.COMPRESSION_ERROR, "header index out of range: " + index);
+    }
+
+    /**
+     * Return the index of an entry matching name and value, else minus the index of an entry matching just
+     * the name, else 0.
+     */
+    int find(String name, String value) {
+        int nameMatch = 0;
+        for (int i = 0; i < STATIC_TABLE.length; ++i) {
+            if (STATIC_TABLE[i][0].equals(name)) {
+                if (STATIC_TABLE[i][1].equals(value)) {
+                    return i + 1;
+                }
+                if (nameMatch == 0) {
+                    nameMatch = -(i + 1);
+                }
+            }
+        }
+        int index = STATIC_TABLE.length + 1;
+        for (String[] entry : dynamic) {
+            if (entry[0].equals(name)) {
+                if (entry[1].equals(value)) {
+                    return index;
+                }
+                if (nameMatch == 0) {
+                    nameMatch = -index;
+                }
+            }
+            ++index;
+        }
+        return nameMatch;
+    }
+
+    void add(String name, String value) {
+        int entrySize = entrySize(name, value);
+        evictUntil(maxSize - entrySize);
+        // an entry larger than the whole table empties it and is not added
+        if (entrySize <= maxSize) {
+            dynamic.addFirst(new String[]{name, value});
+            size += entrySize;
+        }
+    }
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        evictUntil(maxSize);
+    }
+
+    private void evictUntil(int targetSize) {
+        while (size > targetSize && !dynamic.isEmpty()) {
+            String[] evicted = dynamic.removeLast();
+            size -= entrySize(evicted[0], evicted[1]);
+        }
+    }
+
+    private static int entrySize(String name, String value) {
+        return name.length() + value.length() + ENTRY_OVERHEAD;
+    }
+}
@@ -0,0 +1,131 @@
+package com.sps.server.http2;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes HPACK header blocks (RFC 7541) into {name, value} pairs of ISO-8859-1 strings.
+ *
+ * Header blocks must be decoded in the order they arrive on the connection since they share the dynamic table.
+ * not thread safe
+ */
+class HpackDecoder {
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private final HeaderTable table = new HeaderTable();
+    private final int maxTableSize;
+    private final int maxHeaderListSize;
+
+    private byte[] buf;
+    private int position;
+    private int end;
+
+    HpackDecoder(int maxTableSize, int maxHeaderListSize) {
+        this.maxTableSize = maxTableSize;
+        this.maxHeaderListSize = maxHeaderListSize;
+        table.setMaxSize(maxTableSize);
+    }
+
+    List<String[]> decode(byte[] block, int offset, int length) throws Http2Exception {
+        buf = block;
+        position = offset;
+        end = offset + length;
+        List<String[]> headers = new ArrayList<>();
+        int listSize = 0;
+        boolean headerSeen = false;
+        while (position < end) {
+            int b = buf[position] & 0xff;
+            String[] header;
+            if ((b & 0x80) != 0) {
+                // indexed header field
+                header = table.get(readInt(7));
+            } else if ((b & 0x40) != 0) {
+                // literal with incremental indexing
+                header = readLiteral(6);
+                table.add(header[0], header[1]);
+            } else if ((b & 0x20) != 0) {
+                // dynamic table size update, only allowed before the first header
+                if (headerSeen) {
+                    throw Http2Exception.connection(Http2Exception.COMPRESSION_ERROR, "late table size update");
+                }
+                int size = readInt(5);
+                if (size > maxTableSize) {
+                    throw Http2Exception.connection(Http2Exception.COMPRESSION_ERROR, "table size too large");
+                }
+                table.setMaxSize(size);
+                continue;
+            } else {
+                // literal without indexing (0000) or never indexed (0001)
+                header = readLiteral(4);
+            }
+            headerSeen = true;
+            listSize += header[0].length() + header[1].length() + 32;
+            if (listSize > maxHeaderListSize) {
+                throw Http2Exception.connection(Http2Exception.ENHANCE_YOUR_CALM, "header list too large");
+            }
+            headers.add(header);
+        }
+        buf = null;
+        return headers;
+    }
+
+    private String[] readLiteral(int prefixBits) throws Http2Exception {
+        int nameIndex = readInt(prefixBits);
+        String name = nameIndex == 0 ? readString() : table.get(nameIndex)[0];
+        return new String[]{name, readString()};
+    }
+
+    private String readString() throws Http2Exception {
+        if (position >= end) {
+            throw truncated();
+        }
+        boolean huffman = (buf[position] & 0x80) != 0;
+        int length = readInt(7);
+        if (length > end - position) {
+            throw truncated();
+        }
+        byte[] raw;
+        if (huffman) {
+            raw = Huffman.decode(buf, position, length);
+        } else {
+            raw = new byte[length];
+            System.arraycopy(buf, position, raw, 0, length);
+        }
+        position += length;
+        return new String(raw, ISO_8859_1);
+    }
+
+    /**
+     * Read an integer with an N bit prefix (RFC 7541 5.1), starting at the current byte.
+     */
+    private int readInt(int prefixBits) throws Http2Exception {
+        if (position >= end) {
+            throw truncated();
+        }
+        int max = (1 << prefixBits) - 1;
+        int value = buf[position++] & max;
+        if (value < max) {
+            return value;
+        }
+        int shift = 0;
+        while (true) {
+            if (position >= end) {
+                throw truncated();
+            }
+            int b = buf[position++] & 0xff;
+            if (shift > 21) {
+                throw Http2Exception.connection(Http2Exception.COMPRESSION_ERROR, "integer overflow");
+            }
+            value += (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+    private static Http2Exception truncated() {
+        return Http2Exception.connection(Http2Exception.COMPRESSION_ERROR, "truncated header block");
+    }
+}
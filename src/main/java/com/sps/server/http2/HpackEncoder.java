@@ -0,0 +1,91 @@
+package com.sps.server.http2;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Encodes header blocks with HPACK. Repeated headers are sent as a single index into the static or dynamic
+ * table; strings are sent without huffman coding.
+ *
+ * Blocks must be written to the connection in the order they were encoded.
+ * not thread safe
+ */
+class HpackEncoder {
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    /** headers whose values change on nearly every response, so indexing them only churns the table */
+    private static final List<String> NOT_INDEXED = Arrays.asList("content-length", "date", "etag");
+    /** headers intermediaries must never index, per RFC 7541 7.1.3 */
+    private static final List<String> NEVER_INDEXED = Arrays.asList("authorization", "set-cookie");
+
+    private final HeaderTable table = new HeaderTable();
+    /** smallest table size the peer asked for since the last block, or -1 */
+    private int pendingMinSize = -1;
+
+    /**
+     * Called when the peer changes SETTINGS_HEADER_TABLE_SIZE. We never grow past the default table size.
+     */
+    void setMaxTableSize(int peerSize) {
+        int size = Math.min(peerSize, HeaderTable.DEFAULT_MAX_SIZE);
+        pendingMinSize = pendingMinSize == -1 ? size : Math.min(pendingMinSize, size);
+        table.setMaxSize(size);
+    }
+
+    void encode(List<String[]> headers, ByteArrayOutputStream out) {
+        if (pendingMinSize != -1) {
+            // tell the peer about the lowest size first so every entry it evicted we evict too
+            writeInt(out, 0x20, 5, pendingMinSize);
+            if (table.getMaxSize() != pendingMinSize) {
+                writeInt(out, 0x20, 5, table.getMaxSize());
+            }
+            pendingMinSize = -1;
+        }
+        for (String[] header : headers) {
+            String name = header[0];
+            String value = header[1];
+            int index = table.find(name, value);
+            if (index > 0) {
+                writeInt(out, 0x80, 7, index);
+                continue;
+            }
+            int nameIndex = -index;
+            if (NEVER_INDEXED.contains(name)) {
+                writeInt(out, 0x10, 4, nameIndex);
+            } else if (NOT_INDEXED.contains(name)) {
+                writeInt(out, 0x00, 4, nameIndex);
+            } else {
+                writeInt(out, 0x40, 6, nameIndex);
+                table.add(name, value);
+            }
+            if (nameIndex == 0) {
+                writeString(out, name);
+            }
+            writeString(out, value);
+        }
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String str) {
+        byte[] bytes = str.getBytes(ISO_8859_1);
+        writeInt(out, 0x00, 7, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Write an integer with an N bit prefix (RFC 7541 5.1), or'd into the first byte with the given flags.
+     */
+    private static void writeInt(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+}
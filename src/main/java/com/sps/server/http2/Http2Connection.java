@@ -0,0 +1,978 @@
+package com.sps.server.http2;
+
+import com.sps.server.ParseException;
+import com.sps.server.model.HttpMethod;
+import com.sps.server.model.Request;
+import com.sps.server.model.Response;
+import com.sps.server.model.StatusCode;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Serves HTTP/2 (RFC 7540) on one connection, reached either with prior knowledge, through "Upgrade: h2c" or
+ * through ALPN "h2" on a TLS socket.
+ *
+ * Once started, the connection is served by calling run, which reads frames until the connection ends. That
+ * can be a long time for an idle client, so callers should give it a thread of its own rather than one meant
+ * for answering requests. Each complete request is handed to the executor, so streams are answered
+ * concurrently and in whatever order they finish. The executor is shared with other connections, so one
+ * connection only ever has maxRunningStreams answers on it; the rest wait their turn here. Response frames are
+ * written under a single write lock, and a response waits for flow control window without holding it, though
+ * not for longer than WINDOW_TIMEOUT_MILLIS at a time.
+ */
+public class Http2Connection implements Runnable {
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(ISO_8859_1);
+    public static final int PREFACE_LENGTH = PREFACE.length;
+    private static final byte[] UPGRADE_RESPONSE =
+            "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n".getBytes(ISO_8859_1);
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    private static final int FRAME_HEADER_LENGTH = 9;
+    private static final int DEFAULT_FRAME_SIZE = 16 * 1024;
+    private static final int MAX_FRAME_SIZE_LIMIT = (1 << 24) - 1;
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+    private static final long MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+    private static final int CONNECTION_WINDOW_SIZE = 1024 * 1024;
+    private static final int MAX_CONCURRENT_STREAMS = 100;
+    private static final int MAX_HEADER_LIST_SIZE = 16 * 1024;
+    private static final int MAX_HEADER_BLOCK_SIZE = 64 * 1024;
+    /** same limit as Request puts on HTTP/1 bodies */
+    private static final int MAX_BODY_SIZE = 256 * 1024;
+    private static final int IDLE_TIMEOUT_MILLIS = 10 * 1000;
+    private static final long DRAIN_TIMEOUT_MILLIS = 30 * 1000;
+    private static final int LINGER_MILLIS = 1000;
+    /** how long a response waits for the client to open its window before the stream is cancelled */
+    private static final long WINDOW_TIMEOUT_MILLIS = 5 * 1000;
+    private static final List<String> CONNECTION_HEADERS =
+            Arrays.asList("connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade");
+
+    public interface RequestHandler {
+        Response handle(Request request);
+    }
+
+    private final Socket socket;
+    private final InputStream is;
+    private final OutputStream os;
+    private final ExecutorService executor;
+    private final int maxRunningStreams;
+    private final RequestHandler handler;
+
+    private final Object writeLock = new Object();
+    /** guarded by writeLock */
+    private final HpackEncoder encoder = new HpackEncoder();
+    /** guards streams, send windows, closed and the answer queue */
+    private final Object lock = new Object();
+    private final Map<Integer, Http2Stream> streams = new HashMap<>();
+    private long connectionSendWindow = DEFAULT_WINDOW_SIZE;
+    private long peerInitialWindowSize = DEFAULT_WINDOW_SIZE;
+    private volatile int peerMaxFrameSize = DEFAULT_FRAME_SIZE;
+    private boolean closed;
+    /** answers this connection has on the executor, running or queued there */
+    private int runningStreams;
+    /** answers waiting for one of those places */
+    private final Deque<Runnable> waitingStreams = new ArrayDeque<>();
+
+    // only used by the reader thread
+    private final HpackDecoder decoder = new HpackDecoder(HeaderTable.DEFAULT_MAX_SIZE, MAX_HEADER_LIST_SIZE);
+    private final ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+    private int continuationStreamId;
+    private boolean continuationEndStream;
+    private int lastStreamId;
+    private int connectionRecvWindow = CONNECTION_WINDOW_SIZE;
+    private int connectionUnacknowledged;
+
+    public Http2Connection(Socket socket, InputStream is, OutputStream os, ExecutorService executor,
+                           int maxRunningStreams, RequestHandler handler) {
+        this.socket = socket;
+        this.is = is;
+        this.os = new BufferedOutputStream(os);
+        this.executor = executor;
+        this.maxRunningStreams = maxRunningStreams;
+        this.handler = handler;
+    }
+
+    /**
+     * Consume the client connection preface if that is what the stream starts with. Otherwise push back
+     * whatever was read and return false. Reads no further than the first byte that doesn't match, so plain
+     * HTTP/1 requests never block here.
+     */
+    public static boolean readPreface(PushbackInputStream in) throws IOException {
+        int read = 0;
+        while (read < PREFACE.length) {
+            int b = in.read();
+            if (b != (PREFACE[read] & 0xff)) {
+                if (b != -1) {
+                    in.unread(b);
+                }
+                in.unread(PREFACE, 0, read);
+                return false;
+            }
+            ++read;
+        }
+        return true;
+    }
+
+    /**
+     * Return the HTTP2-Settings header if this is an HTTP/1.1 request asking to upgrade to h2c.
+     */
+    public static Optional<String> getUpgradeSettings(Request request) throws IOException {
+        Map<String, String> headers = request.readHeaders();
+        String upgrade = headers.get("upgrade");
+        String settings = headers.get("http2-settings");
+        if (!"HTTP/1.1".equals(request.getVersion()) || upgrade == null || settings == null) {
+            return Optional.empty();
+        }
+        for (String token : upgrade.split(",")) {
+            if (token.trim().equalsIgnoreCase("h2c")) {
+                return Optional.of(settings);
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Start a connection whose preface has already been read.
+     */
+    public void start() throws IOException {
+        writeServerPreface();
+    }
+
+    /**
+     * Switch an HTTP/1.1 connection to h2c and answer the upgrading request as stream 1. Also reads the
+     * client's preface, which follows the upgrade.
+     */
+    public void startUpgrade(Request request, String http2Settings) throws IOException {
+        if (request.readHeaders().containsKey("content-length")) {
+            request.readBody();
+        }
+        try {
+            byte[] settings = Base64.getUrlDecoder().decode(http2Settings.trim());
+            if (settings.length % 6 != 0) {
+                throw new ParseException(StatusCode.BAD_REQUEST, "invalid HTTP2-Settings");
+            }
+            applySettings(settings);
+        } catch (IllegalArgumentException | Http2Exception e) {
+            throw new ParseException(StatusCode.BAD_REQUEST, "invalid HTTP2-Settings", e);
+        }
+        os.write(UPGRADE_RESPONSE);
+        writeServerPreface();
+
+        Http2Stream stream = new Http2Stream(1);
+        stream.remoteClosed = true;
+        synchronized (lock) {
+            stream.sendWindow = peerInitialWindowSize;
+            streams.put(1, stream);
+        }
+        lastStreamId = 1;
+        submit(stream, request, null);
+
+        byte[] preface = new byte[PREFACE.length];
+        readFully(preface, 0, preface.length);
+        if (!Arrays.equals(preface, PREFACE)) {
+            close(Http2Exception.PROTOCOL_ERROR);
+        }
+    }
+
+    /**
+     * Read frames until the connection ends, then say GOAWAY.
+     */
+    @Override
+    public void run() {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+        }
+        int errorCode = Http2Exception.NO_ERROR;
+        try {
+            socket.setSoTimeout(IDLE_TIMEOUT_MILLIS);
+            while (readFrame()) {
+                // keep reading
+            }
+        } catch (Http2Exception e) {
+            System.out.format("closing http2 connection: %s%n", e.getMessage());
+            errorCode = e.getErrorCode();
+        } catch (EOFException e) {
+            // the peer went away mid-frame
+        } catch (IOException e) {
+            e.printStackTrace();
+            errorCode = Http2Exception.INTERNAL_ERROR;
+        }
+        if (errorCode == Http2Exception.NO_ERROR) {
+            awaitStreams();
+        }
+        close(errorCode);
+    }
+
+    /**
+     * Turn away a started connection without reading any more frames, as when the server has no thread to run
+     * it on. A request taken over from HTTP/1.1 is still answered.
+     */
+    public void refuse() {
+        awaitStreams();
+        close(Http2Exception.NO_ERROR);
+        // closing with the client's frames still unread would reset the connection, which can destroy the
+        // GOAWAY before the client reads it. So stop sending and give the client a moment to hang up first.
+        try {
+            try {
+                socket.shutdownOutput();
+            } catch (UnsupportedOperationException e) {
+                // TLS sockets can't half close; the client still hangs up on GOAWAY
+            }
+            socket.setSoTimeout(LINGER_MILLIS);
+            byte[] discard = new byte[4096];
+            while (is.read(discard) != -1) {
+                // keep draining
+            }
+        } catch (IOException e) {
+            // already gone, or too slow to hang up
+        }
+    }
+
+    /**
+     * Read and handle one frame. Returns false once the connection should wind down.
+     */
+    private boolean readFrame() throws IOException {
+        byte[] header = new byte[FRAME_HEADER_LENGTH];
+        try {
+            int first = is.read();
+            if (first == -1) {
+                return false;
+            }
+            header[0] = (byte) first;
+        } catch (SocketTimeoutException e) {
+            // idle between frames; hang up unless responses are still being produced
+            synchronized (lock) {
+                return !streams.isEmpty();
+            }
+        }
+        readFully(header, 1, FRAME_HEADER_LENGTH - 1);
+        int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+        int type = header[3] & 0xff;
+        int flags = header[4] & 0xff;
+        int streamId = readInt31(header, 5);
+        if (length > DEFAULT_FRAME_SIZE) {
+            throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR, "frame too large: " + length);
+        }
+        byte[] payload = new byte[length];
+        readFully(payload, 0, length);
+
+        if (continuationStreamId != 0 && (type != CONTINUATION || streamId != continuationStreamId)) {
+            throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "expected CONTINUATION");
+        }
+        try {
+            switch (type) {
+                case DATA:
+                    handleData(flags, streamId, payload);
+                    break;
+                case HEADERS:
+                    handleHeaders(flags, streamId, payload);
+                    break;
+                case PRIORITY:
+                    handlePriority(streamId, payload);
+                    break;
+                case RST_STREAM:
+                    handleRstStream(streamId, payload);
+                    break;
+                case SETTINGS:
+                    handleSettings(flags, streamId, payload);
+                    break;
+                case PUSH_PROMISE:
+                    throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "clients may not push");
+                case PING:
+                    handlePing(flags, streamId, payload);
+                    break;
+                case GOAWAY:
+                    if (streamId != 0) {
+                        throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "GOAWAY on a stream");
+                    }
+                    return false;
+                case WINDOW_UPDATE:
+                    handleWindowUpdate(streamId, payload);
+                    break;
+                case CONTINUATION:
+                    handleContinuation(flags, streamId, payload);
+                    break;
+                default:
+                    // unknown frame types must be ignored
+                    break;
+            }
+        } catch (Http2Exception e) {
+            if (e.isConnectionError()) {
+                throw e;
+            }
+            resetStream(e.getStreamId(), e.getErrorCode());
+        }
+        return true;
+    }
+
+    private void handleData(int flags, int streamId, byte[] payload) throws IOException {
+        if (streamId == 0) {
+            throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        // the whole frame counts against flow control, padding included
+        connectionRecvWindow -= payload.length;
+        if (connectionRecvWindow < 0) {
+            throw Http2Exception.connection(Http2Exception.FLOW_CONTROL_ERROR, "connection window exceeded");
+        }
+        connectionUnacknowledged += payload.length;
+        if (connectionUnacknowledged >= CONNECTION_WINDOW_SIZE / 2) {
+            writeWindowUpdate(0, connectionUnacknowledged);
+            connectionRecvWindow += connectionUnacknowledged;
+            connectionUnacknowledged = 0;
+        }
+
+        Http2Stream stream = getOpenStream(streamId);
+        stream.recvWindow -= payload.length;
+        if (stream.recvWindow < 0) {
+            throw Http2Exception.stream(streamId, Http2Exception.FLOW_CONTROL_ERROR, "stream window exceeded");
+        }
+        int[] range = unpad(flags, payload);
+        int dataLength = range[1] - range[0];
+        if (!stream.bodyTooLarge) {
+            if (stream.body.size() + dataLength > MAX_BODY_SIZE) {
+                stream.bodyTooLarge = true;
+                stream.body.reset();
+            } else {
+                stream.body.write(payload, range[0], dataLength);
+            }
+        }
+
+        if ((flags & FLAG_END_STREAM) != 0) {
+            stream.remoteClosed = true;
+            dispatch(stream);
+            return;
+        }
+        stream.unacknowledgedBytes += payload.length;
+        if (stream.unacknowledgedBytes >= DEFAULT_WINDOW_SIZE / 2) {
+            writeWindowUpdate(streamId, stream.unacknowledgedBytes);
+            stream.recvWindow += stream.unacknowledgedBytes;
+            stream.unacknowledgedBytes = 0;
+        }
+    }
+
+    private void handleHeaders(int flags, int streamId, byte[] payload) throws IOException {
+        if (streamId == 0) {
+            throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "HEADERS on stream 0");
+        }
+        int[] range = unpad(flags, payload);
+        int start = range[0];
+        if ((flags & FLAG_PRIORITY) != 0) {
+            // stream dependency and weight; we don't prioritize
+            start += 5;
+            if (start > range[1]) {
+                throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "HEADERS too short");
+            }
+        }
+        headerBlock.reset();
+        headerBlock.write(payload, start, range[1] - start);
+        continuationStreamId = streamId;
+        continuationEndStream = (flags & FLAG_END_STREAM) != 0;
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            endHeaders();
+        }
+    }
+
+    private void handleContinuation(int flags, int streamId, byte[] payload) throws IOException {
+        if (continuationStreamId == 0) {
+            throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "unexpected CONTINUATION");
+        }
+        headerBlock.write(payload, 0, payload.length);
+        if (headerBlock.size() > MAX_HEADER_BLOCK_SIZE) {
+            throw Http2Exception.connection(Http2Exception.ENHANCE_YOUR_CALM, "header block too large");
+        }
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            endHeaders();
+        }
+    }
+
+    private void endHeaders() throws IOException {
+        int streamId = continuationStreamId;
+        boolean endStream = continuationEndStream;
+        continuationStreamId = 0;
+        // always decode, even for streams we refuse, to keep the HPACK table in step with the client
+        byte[] block = headerBlock.toByteArray();
+        List<String[]> headers = decoder.decode(block, 0, block.length);
+
+        Http2Stream stream;
+        synchronized (lock) {
+            stream = streams.get(streamId);
+        }
+        if (stream != null) {
+            // trailers, which we accept and ignore
+            if (stream.remoteClosed) {
+                throw Http2Exception.stream(streamId, Http2Exception.STREAM_CLOSED, "HEADERS on closed stream");
+            }
+            if (!endStream) {
+                throw Http2Exception.stream(streamId, Http2Exception.PROTOCOL_ERROR, "trailers without END_STREAM");
+            }
+            stream.remoteClosed = true;
+            dispatch(stream);
+            return;
+        }
+        if (streamId % 2 == 0 || streamId <= lastStreamId) {
+            throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "invalid stream id " + streamId);
+        }
+        lastStreamId = streamId;
+        stream = new Http2Stream(streamId);
+        stream.headers = headers;
+        stream.recvWindow = DEFAULT_WINDOW_SIZE;
+        synchronized (lock) {
+            if (streams.size() >= MAX_CONCURRENT_STREAMS) {
+                throw Http2Exception.stream(streamId, Http2Exception.REFUSED_STREAM, "too many streams");
+            }
+            stream.sendWindow = peerInitialWindowSize;
+            streams.put(streamId, stream);
+        }
+        if (endStream) {
+            stream.remoteClosed = true;
+            dispatch(stream);
+        }
+    }
+
+    private void handlePriority(int streamId, byte[] payload) throws Http2Exception {
+        if (streamId == 0) {
+            throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "PRIORITY on stream 0");
+        }
+        if (payload.length != 5) {
+            throw Http2Exception.stream(streamId, Http2Exception.FRAME_SIZE_ERROR, "bad PRIORITY length");
+        }
+    }
+
+    private void handleRstStream(int streamId, byte[] payload) throws Http2Exception {
+        if (payload.length != 4) {
+            throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR, "bad RST_STREAM length");
+        }
+        if (streamId == 0 || streamId > lastStreamId) {
+            throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "RST_STREAM on idle stream");
+        }
+        synchronized (lock) {
+            Http2Stream stream = streams.remove(streamId);
+            if (stream != null) {
+                stream.reset = true;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void handleSettings(int flags, int streamId, byte[] payload) throws IOException {
+        if (streamId != 0) {
+            throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "SETTINGS on a stream");
+        }
+        if ((flags & FLAG_ACK) != 0) {
+            if (payload.length != 0) {
+                throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR, "SETTINGS ack with payload");
+            }
+            return;
+        }
+        if (payload.length % 6 != 0) {
+            throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR, "bad SETTINGS length");
+        }
+        applySettings(payload);
+        writeFrame(SETTINGS, FLAG_ACK, 0, new byte[0], 0, 0);
+    }
+
+    private void applySettings(byte[] payload) throws Http2Exception {
+        for (int i = 0; i + 6 <= payload.length; i += 6) {
+            int id = ((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff);
+            long value = readInt32(payload, i + 2) & 0xffffffffL;
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    synchronized (writeLock) {
+                        encoder.setMaxTableSize((int) Math.min(value, Integer.MAX_VALUE));
+                    }
+                    break;
+                case SETTINGS_ENABLE_PUSH:
+                    if (value > 1) {
+                        throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "bad ENABLE_PUSH");
+                    }
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value > MAX_WINDOW_SIZE) {
+                        throw Http2Exception.connection(Http2Exception.FLOW_CONTROL_ERROR, "bad INITIAL_WINDOW_SIZE");
+                    }
+                    synchronized (lock) {
+                        long delta = value - peerInitialWindowSize;
+                        peerInitialWindowSize = value;
+                        for (Http2Stream stream : streams.values()) {
+                            stream.sendWindow += delta;
+                            if (stream.sendWindow > MAX_WINDOW_SIZE) {
+                                throw Http2Exception.connection(Http2Exception.FLOW_CONTROL_ERROR, "window overflow");
+                            }
+                        }
+                        lock.notifyAll();
+                    }
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < DEFAULT_FRAME_SIZE || value > MAX_FRAME_SIZE_LIMIT) {
+                        throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "bad MAX_FRAME_SIZE");
+                    }
+                    peerMaxFrameSize = (int) value;
+                    break;
+                default:
+                    // MAX_CONCURRENT_STREAMS and MAX_HEADER_LIST_SIZE don't constrain a server that never pushes
+                    break;
+            }
+        }
+    }
+
+    private void handlePing(int flags, int streamId, byte[] payload) throws IOException {
+        if (streamId != 0) {
+            throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "PING on a stream");
+        }
+        if (payload.length != 8) {
+            throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR, "bad PING length");
+        }
+        if ((flags & FLAG_ACK) == 0) {
+            writeFrame(PING, FLAG_ACK, 0, payload, 0, payload.length);
+        }
+    }
+
+    private void handleWindowUpdate(int streamId, byte[] payload) throws Http2Exception {
+        if (payload.length != 4) {
+            throw Http2Exception.connection(Http2Exception.FRAME_SIZE_ERROR, "bad WINDOW_UPDATE length");
+        }
+        int increment = readInt31(payload, 0);
+        if (streamId == 0) {
+            if (increment == 0) {
+                throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "zero WINDOW_UPDATE");
+            }
+            synchronized (lock) {
+                connectionSendWindow += increment;
+                if (connectionSendWindow > MAX_WINDOW_SIZE) {
+                    throw Http2Exception.connection(Http2Exception.FLOW_CONTROL_ERROR, "window overflow");
+                }
+                lock.notifyAll();
+            }
+            return;
+        }
+        if (streamId > lastStreamId) {
+            throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "WINDOW_UPDATE on idle stream");
+        }
+        if (increment == 0) {
+            throw Http2Exception.stream(streamId, Http2Exception.PROTOCOL_ERROR, "zero WINDOW_UPDATE");
+        }
+        synchronized (lock) {
+            Http2Stream stream = streams.get(streamId);
+            if (stream == null) {
+                // already finished on our side
+                return;
+            }
+            stream.sendWindow += increment;
+            if (stream.sendWindow > MAX_WINDOW_SIZE) {
+                throw Http2Exception.stream(streamId, Http2Exception.FLOW_CONTROL_ERROR, "window overflow");
+            }
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Turn a fully received stream into a Request and queue it for the handler.
+     */
+    private void dispatch(Http2Stream stream) throws Http2Exception {
+        if (stream.bodyTooLarge) {
+            submit(stream, null, new Response(StatusCode.ENTITY_TOO_LARGE, null));
+            return;
+        }
+        String method = null;
+        String path = null;
+        String scheme = null;
+        String authority = null;
+        Map<String, String> headers = new HashMap<>();
+        for (String[] header : stream.headers) {
+            String name = header[0];
+            String value = new String(header[1].getBytes(ISO_8859_1), UTF_8);
+            if (name.startsWith(":")) {
+                if (!headers.isEmpty()) {
+                    throw malformed(stream, "pseudo header after regular header");
+                }
+                switch (name) {
+                    case ":method":
+                        method = value;
+                        break;
+                    case ":path":
+                        path = value;
+                        break;
+                    case ":scheme":
+                        scheme = value;
+                        break;
+                    case ":authority":
+                        authority = value;
+                        break;
+                    default:
+                        throw malformed(stream, "unknown pseudo header " + name);
+                }
+                continue;
+            }
+            if (!name.equals(name.toLowerCase(Locale.ROOT)) || CONNECTION_HEADERS.contains(name)
+                    || ("te".equals(name) && !"trailers".equals(value))) {
+                throw malformed(stream, "header not allowed in HTTP/2: " + name);
+            }
+            String existing = headers.get(name);
+            headers.put(name, existing == null ? value : existing + ("cookie".equals(name) ? "; " : ", ") + value);
+        }
+        if (method == null || path == null || scheme == null || path.isEmpty()) {
+            throw malformed(stream, "missing pseudo header");
+        }
+        if (authority != null && !headers.containsKey("host")) {
+            headers.put("host", authority);
+        }
+        byte[] body = stream.body.toByteArray();
+        String contentLength = headers.get("content-length");
+        if (contentLength != null && !contentLength.equals(Integer.toString(body.length))) {
+            throw malformed(stream, "content-length does not match entity size");
+        }
+
+        HttpMethod httpMethod;
+        try {
+            httpMethod = HttpMethod.valueOf(method);
+        } catch (IllegalArgumentException e) {
+            submit(stream, null, new Response(StatusCode.BAD_REQUEST, "unsupported method".getBytes()));
+            return;
+        }
+        submit(stream, Request.of(httpMethod, path, "HTTP/2.0", headers, body), null);
+    }
+
+    /**
+     * Answer the stream on the executor, either by handling the request or with the given response. Waits for
+     * one of this connection's places on the executor if they are all taken.
+     */
+    private void submit(Http2Stream stream, Request request, Response response) throws Http2Exception {
+        Runnable answer = () -> {
+            try {
+                writeResponse(stream, request == null ? response : handler.handle(request));
+            } catch (IOException e) {
+                // the stream was reset or the connection went away
+            } finally {
+                synchronized (lock) {
+                    streams.remove(stream.getId(), stream);
+                    lock.notifyAll();
+                }
+                startWaitingStream();
+            }
+        };
+        synchronized (lock) {
+            if (runningStreams >= maxRunningStreams) {
+                waitingStreams.add(answer);
+                return;
+            }
+            ++runningStreams;
+        }
+        try {
+            executor.execute(answer);
+        } catch (RejectedExecutionException e) {
+            synchronized (lock) {
+                --runningStreams;
+            }
+            throw Http2Exception.stream(stream.getId(), Http2Exception.REFUSED_STREAM, "server is busy");
+        }
+    }
+
+    /**
+     * Pass a finished answer's place on the executor to the next waiting one, if any.
+     */
+    private void startWaitingStream() {
+        Runnable next;
+        synchronized (lock) {
+            next = waitingStreams.poll();
+            if (next == null) {
+                --runningStreams;
+                return;
+            }
+        }
+        try {
+            executor.execute(next);
+        } catch (RejectedExecutionException e) {
+            // the server is shutting down; answer here rather than leave the stream open
+            next.run();
+        }
+    }
+
+    private void writeResponse(Http2Stream stream, Response response) throws IOException {
+        byte[] body = response.getBody() == null ? new byte[0] : response.getBody();
+        List<String[]> headers = new ArrayList<>();
+        headers.add(new String[]{":status", Integer.toString(response.getStatus().getCode())});
+        headers.add(new String[]{"content-type", Response.CONTENT_TYPE});
+        headers.add(new String[]{"content-length", Integer.toString(body.length)});
+        for (Map.Entry<String, String> header : response.getHeaders().entrySet()) {
+            if (!CONNECTION_HEADERS.contains(header.getKey())) {
+                headers.add(new String[]{header.getKey(),
+                        new String(header.getValue().getBytes(UTF_8), ISO_8859_1)});
+            }
+        }
+
+        synchronized (writeLock) {
+            synchronized (lock) {
+                // nothing to say on a stream the client reset or after GOAWAY. Checked before encoding, since
+                // every block we encode changes the table and must then reach the client.
+                if (closed || stream.reset) {
+                    return;
+                }
+            }
+            // encoding and writing have to happen together so the client sees blocks in table order
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            encoder.encode(headers, block);
+            writeHeaderBlock(stream.getId(), block.toByteArray(), body.length == 0);
+        }
+        int offset = 0;
+        while (offset < body.length) {
+            int length = reserveWindow(stream, body.length - offset);
+            boolean last = offset + length == body.length;
+            writeFrame(DATA, last ? FLAG_END_STREAM : 0, stream.getId(), body, offset, length);
+            offset += length;
+        }
+    }
+
+    private void writeHeaderBlock(int streamId, byte[] block, boolean endStream) throws IOException {
+        int maxFrameSize = peerMaxFrameSize;
+        int offset = 0;
+        boolean first = true;
+        do {
+            int length = Math.min(maxFrameSize, block.length - offset);
+            boolean last = offset + length == block.length;
+            int type = first ? HEADERS : CONTINUATION;
+            int flags = (last ? FLAG_END_HEADERS : 0) | (first && endStream ? FLAG_END_STREAM : 0);
+            writeFrame(type, flags, streamId, block, offset, length);
+            offset += length;
+            first = false;
+        } while (offset < block.length);
+    }
+
+    /**
+     * Block until both the connection and the stream have send window, then take up to wanted bytes of it. If
+     * the client keeps the window shut for WINDOW_TIMEOUT_MILLIS, cancel the stream instead, since waiting
+     * holds a thread other connections need.
+     */
+    private int reserveWindow(Http2Stream stream, int wanted) throws IOException {
+        long deadline = System.currentTimeMillis() + WINDOW_TIMEOUT_MILLIS;
+        synchronized (lock) {
+            while (true) {
+                if (closed || stream.reset) {
+                    throw new IOException("stream " + stream.getId() + " is gone");
+                }
+                long available = Math.min(connectionSendWindow, stream.sendWindow);
+                if (available > 0) {
+                    int length = (int) Math.min(Math.min(available, wanted), peerMaxFrameSize);
+                    connectionSendWindow -= length;
+                    stream.sendWindow -= length;
+                    return length;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                try {
+                    lock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+        resetStream(stream.getId(), Http2Exception.CANCEL);
+        throw new IOException("no send window on stream " + stream.getId());
+    }
+
+    private void writeServerPreface() throws IOException {
+        byte[] settings = new byte[12];
+        writeSetting(settings, 0, SETTINGS_MAX_CONCURRENT_STREAMS, MAX_CONCURRENT_STREAMS);
+        writeSetting(settings, 6, SETTINGS_MAX_HEADER_LIST_SIZE, MAX_HEADER_LIST_SIZE);
+        writeFrame(SETTINGS, 0, 0, settings, 0, settings.length);
+        writeWindowUpdate(0, CONNECTION_WINDOW_SIZE - DEFAULT_WINDOW_SIZE);
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException {
+        byte[] payload = new byte[4];
+        writeInt32(payload, 0, increment);
+        writeFrame(WINDOW_UPDATE, 0, streamId, payload, 0, payload.length);
+    }
+
+    private void resetStream(int streamId, int errorCode) throws IOException {
+        synchronized (lock) {
+            Http2Stream stream = streams.remove(streamId);
+            if (stream != null) {
+                stream.reset = true;
+                lock.notifyAll();
+            }
+        }
+        byte[] payload = new byte[4];
+        writeInt32(payload, 0, errorCode);
+        writeFrame(RST_STREAM, 0, streamId, payload, 0, payload.length);
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length)
+            throws IOException {
+        byte[] header = new byte[FRAME_HEADER_LENGTH];
+        header[0] = (byte) (length >>> 16);
+        header[1] = (byte) (length >>> 8);
+        header[2] = (byte) length;
+        header[3] = (byte) type;
+        header[4] = (byte) flags;
+        writeInt32(header, 5, streamId);
+        synchronized (writeLock) {
+            os.write(header);
+            os.write(payload, offset, length);
+            os.flush();
+        }
+    }
+
+    /**
+     * Wait a while for in flight responses, dropping streams whose requests will now never be complete.
+     */
+    private void awaitStreams() {
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+        synchronized (lock) {
+            Iterator<Http2Stream> it = streams.values().iterator();
+            while (it.hasNext()) {
+                if (!it.next().remoteClosed) {
+                    it.remove();
+                }
+            }
+            long remaining = DRAIN_TIMEOUT_MILLIS;
+            while (!streams.isEmpty() && remaining > 0) {
+                try {
+                    lock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+    }
+
+    private void close(int errorCode) {
+        synchronized (lock) {
+            closed = true;
+            for (Http2Stream stream : streams.values()) {
+                stream.reset = true;
+            }
+            streams.clear();
+            lock.notifyAll();
+        }
+        try {
+            byte[] payload = new byte[8];
+            writeInt32(payload, 0, lastStreamId);
+            writeInt32(payload, 4, errorCode);
+            writeFrame(GOAWAY, 0, 0, payload, 0, payload.length);
+        } catch (IOException e) {
+            // the socket is already gone
+        }
+    }
+
+    private Http2Stream getOpenStream(int streamId) throws Http2Exception {
+        if (streamId > lastStreamId) {
+            throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "frame on idle stream " + streamId);
+        }
+        Http2Stream stream;
+        synchronized (lock) {
+            stream = streams.get(streamId);
+        }
+        if (stream == null || stream.remoteClosed) {
+            throw Http2Exception.stream(streamId, Http2Exception.STREAM_CLOSED, "stream is closed");
+        }
+        return stream;
+    }
+
+    /**
+     * Return the {start, end} of a frame's content with any padding removed.
+     */
+    private static int[] unpad(int flags, byte[] payload) throws Http2Exception {
+        if ((flags & FLAG_PADDED) == 0) {
+            return new int[]{0, payload.length};
+        }
+        if (payload.length == 0) {
+            throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "missing pad length");
+        }
+        int padLength = payload[0] & 0xff;
+        if (padLength >= payload.length) {
+            throw Http2Exception.connection(Http2Exception.PROTOCOL_ERROR, "padding exceeds frame");
+        }
+        return new int[]{1, payload.length - padLength};
+    }
+
+    private static Http2Exception malformed(Http2Stream stream, String message) {
+        return Http2Exception.stream(stream.getId(), Http2Exception.PROTOCOL_ERROR, message);
+    }
+
+    private void readFully(byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int read = is.read(buffer, offset, length);
+            if (read == -1) {
+                throw new EOFException();
+            }
+            offset += read;
+            length -= read;
+        }
+    }
+
+    private static void writeSetting(byte[] buffer, int offset, int id, int value) {
+        buffer[offset] = (byte) (id >>> 8);
+        buffer[offset + 1] = (byte) id;
+        writeInt32(buffer, offset + 2, value);
+    }
+
+    private static void writeInt32(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static int readInt32(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xff) << 24) | ((buffer[offset + 1] & 0xff) << 16)
+                | ((buffer[offset + 2] & 0xff) << 8) | (buffer[offset + 3] & 0xff);
+    }
+
+    private static int readInt31(byte[] buffer, int offset) {
+        return readInt32(buffer, offset) & 0x7fffffff;
+    }
+}
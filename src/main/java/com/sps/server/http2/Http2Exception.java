@@ -0,0 +1,43 @@
+package com.sps.server.http2;
+
+import lombok.Getter;
+
+import java.io.IOException;
+
+/**
+ * An HTTP/2 protocol error. Stream errors reset one stream, connection errors (stream 0) end the connection.
+ */
+@Getter
+public class Http2Exception extends IOException {
+    public static final int NO_ERROR = 0x0;
+    public static final int PROTOCOL_ERROR = 0x1;
+    public static final int INTERNAL_ERROR = 0x2;
+    public static final int FLOW_CONTROL_ERROR = 0x3;
+    public static final int STREAM_CLOSED = 0x5;
+    public static final int FRAME_SIZE_ERROR = 0x6;
+    public static final int REFUSED_STREAM = 0x7;
+    public static final int CANCEL = 0x8;
+    public static final int COMPRESSION_ERROR = 0x9;
+    public static final int ENHANCE_YOUR_CALM = 0xb;
+
+    private final int errorCode;
+    private final int streamId;
+
+    private Http2Exception(int errorCode, int streamId, String message) {
+        super(message);
+        this.errorCode = errorCode;
+        this.streamId = streamId;
+    }
+
+    public static Http2Exception connection(int errorCode, String message) {
+        return new Http2Exception(errorCode, 0, message);
+    }
+
+    public static Http2Exception stream(int streamId, int errorCode, String message) {
+        return new Http2Exception(errorCode, streamId, message);
+    }
+
+    public boolean isConnectionError() {
+        return streamId == 0;
+    }
+}
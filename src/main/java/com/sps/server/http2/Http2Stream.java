@@ -0,0 +1,32 @@
+package com.sps.server.http2;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+/**
+ * One request/response exchange on an HTTP/2 connection.
+ *
+ * The request side is only touched by the connection's reader thread; the window and reset flag are guarded by
+ * the connection's lock.
+ */
+@RequiredArgsConstructor
+class Http2Stream {
+    @Getter
+    private final int id;
+
+    // request side
+    List<String[]> headers;
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    boolean bodyTooLarge;
+    boolean remoteClosed;
+    int recvWindow;
+    /** bytes consumed since we last sent a WINDOW_UPDATE for this stream */
+    int unacknowledgedBytes;
+
+    // response side
+    long sendWindow;
+    boolean reset;
+}
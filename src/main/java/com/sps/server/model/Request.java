@@ -71,6 +71,18 @@ public class Request {
         }
     }
 
+    /**
+     * Build a request whose headers and body were already read off the connection, e.g. an HTTP/2 stream.
+     * Header names must be lower case.
+     */
+    public static Request of(HttpMethod method, String url, String version, Map<String, String> headers,
+                             byte[] body) {
+        Request request = new Request(null, method, url, version);
+        request.headers = headers;
+        request.body = body;
+        return request;
+    }
+
     public Map<String, String> readHeaders() throws IOException {
         if (headers == null) {
             // this doesn't handle double quotes or multiple headers with the same name according to rfc.
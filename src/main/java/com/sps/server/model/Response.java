@@ -7,19 +7,25 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 
 @RequiredArgsConstructor
 public class Response {
+    public static final String CONTENT_TYPE = "text/html; charset=UTF-8";
     private static final byte[] CR_LF = "\r\n".getBytes();
     private static final byte[] HTTP_VERSION = "HTTP/1.0 ".getBytes();
-    private static final byte[] CONTENT_TYPE = "Content-Type: text/html; charset=UTF-8".getBytes();
+    private static final byte[] CONTENT_TYPE_HEADER = ("Content-Type: " + CONTENT_TYPE).getBytes();
     private static final byte[] CONTENT_LENGTH_PREFIX = "Content-Length: ".getBytes();
     private static final List<String> PROVIDED_HEADERS =
             Arrays.asList("content-type", "content-length");
 
+    @Getter
     private final StatusCode status;
+    @Getter
     private final byte[] body;
+    /** lower case names, not including content-type and content-length */
+    @Getter
     private final Map<String, String> headers = new HashMap<>();
 
     public Response addHeader(String name, String value) {
@@ -38,7 +44,7 @@ public class Response {
         os.write(CR_LF);
 
         // headers
-        os.write(CONTENT_TYPE);
+        os.write(CONTENT_TYPE_HEADER);
         os.write(CR_LF);
         os.write(CONTENT_LENGTH_PREFIX);
         os.write(Integer.toString(body == null ? 0 : body.length).getBytes());
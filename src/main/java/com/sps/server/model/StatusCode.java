@@ -9,6 +9,7 @@ public enum StatusCode {
     INTERNAL_ERROR(500),
     NOT_FOUND(404),
     UNAUTHORIZED(401),
+    FORBIDDEN(403),
     ENTITY_TOO_LARGE(413);
 
     private int code;
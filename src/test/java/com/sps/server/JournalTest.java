@@ -0,0 +1,208 @@
+package com.sps.server;
+
+import com.sps.server.model.Response;
+import com.sps.server.model.StatusCode;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JournalTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int WRITERS = 8;
+    private static final int APPENDS_PER_WRITER = 50;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path site;
+    private File journalFile;
+    private File checkpointFile;
+    private Journal journal;
+    /** the checkpoint on disk as each entry started to apply, by seq */
+    private final Map<Long, Long> checkpointBeforeApply = new HashMap<>();
+
+    @Before
+    public void setUp() throws IOException {
+        site = folder.newFolder("site").toPath();
+        journalFile = new File(folder.getRoot(), "journal");
+        checkpointFile = new File(folder.getRoot(), "journal.checkpoint");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void concurrentAppendsShareSyncs() throws Exception {
+        Files.write(site.resolve("a.html"), new byte[0]);
+        journal = open();
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS);
+        try {
+            List<Future<List<Response>>> writers = new ArrayList<>();
+            for (int i = 0; i < WRITERS; ++i) {
+                int writer = i;
+                writers.add(executor.submit((Callable<List<Response>>) () -> {
+                    List<Response> responses = new ArrayList<>();
+                    for (int j = 0; j < APPENDS_PER_WRITER; ++j) {
+                        responses.add(journal.append(entry("edit", "a.html", writer + "-" + j)));
+                    }
+                    return responses;
+                }));
+            }
+            for (Future<List<Response>> writer : writers) {
+                for (Response response : writer.get()) {
+                    assertEquals(StatusCode.OK, response.getStatus());
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        int appends = WRITERS * APPENDS_PER_WRITER;
+        assertEquals(appends, journal.getLastSeq());
+        assertTrue("expected fewer syncs than the " + appends + " appends, got " + journal.getSyncCount(),
+                journal.getSyncCount() < appends);
+        JSONArray entries = journal.readAfter(0, appends, 0);
+        assertEquals(appends, entries.length());
+        for (int i = 0; i < appends; ++i) {
+            assertEquals(i + 1, entries.getJSONObject(i).getLong("seq"));
+        }
+        assertEquals(appends, readCheckpoint());
+    }
+
+    @Test
+    public void recoveryCutsOffPartialEntry() throws IOException {
+        String complete = line(entry("create", "a.html", null), 1) + line(entry("create", "b.html", null), 2);
+        Files.write(journalFile.toPath(), (complete + "{\"command\":\"cre").getBytes(UTF_8));
+        writeCheckpoint(2);
+
+        journal = open();
+        assertEquals(2, journal.getLastSeq());
+        assertEquals(complete.length(), journalFile.length());
+
+        assertEquals(StatusCode.OK, journal.append(entry("create", "c.html", null)).getStatus());
+        JSONArray entries = journal.readAfter(0, 10, 0);
+        assertEquals(3, entries.length());
+        assertEquals("c.html", entries.getJSONObject(2).getString("filename"));
+        assertEquals(3, entries.getJSONObject(2).getLong("seq"));
+    }
+
+    @Test
+    public void replaysEntriesAfterCheckpoint() throws IOException {
+        // entry 1 reached the tree, then the leader crashed before applying 2 and 3
+        Files.write(journalFile.toPath(), (line(entry("create", "d/a.html", null), 1)
+                + line(entry("edit", "d/a.html", "A"), 2)
+                + line(entry("create", "b.html", null), 3)).getBytes(UTF_8));
+        Files.createDirectory(site.resolve("d"));
+        Files.write(site.resolve("d/a.html"), new byte[0]);
+        writeCheckpoint(1);
+
+        journal = open();
+        assertEquals("A", read("d/a.html"));
+        assertTrue(Files.exists(site.resolve("b.html")));
+        assertEquals(3, readCheckpoint());
+        assertEquals(3, journal.getLastSeq());
+    }
+
+    @Test
+    public void replayDoesNotReviveFailedEntry() throws IOException {
+        journal = open();
+        JSONArray batch = new JSONArray();
+        // fails, since a.html does not exist yet
+        batch.put(entry("edit", "a.html", "x").put("seq", 1));
+        batch.put(entry("create", "a.html", null).put("seq", 2));
+        batch.put(entry("create", "b.html", null).put("seq", 3));
+        journal.replicate(batch);
+        journal.close();
+        assertEquals("", read("a.html"));
+
+        // crash just as entry 3 started to apply: a.html exists, and entry 1 must not be replayed against it
+        long checkpoint = checkpointBeforeApply.get(3L);
+        assertEquals(1, checkpoint);
+        writeCheckpoint(checkpoint);
+        Files.delete(site.resolve("b.html"));
+        journal = open();
+        assertEquals("", read("a.html"));
+        assertTrue(Files.exists(site.resolve("b.html")));
+    }
+
+    @Test
+    public void checkpointsUnderSteadyLoad() throws IOException {
+        Files.write(site.resolve("a.html"), new byte[0]);
+        journal = open();
+        JSONArray batch = new JSONArray();
+        for (int i = 1; i <= Journal.CHECKPOINT_ENTRIES + 1; ++i) {
+            batch.put(entry("edit", "a.html", Integer.toString(i)).put("seq", i));
+        }
+        journal.replicate(batch);
+        assertEquals(Journal.CHECKPOINT_ENTRIES, (long) checkpointBeforeApply.get(Journal.CHECKPOINT_ENTRIES + 1L));
+        assertEquals(Journal.CHECKPOINT_ENTRIES + 1, readCheckpoint());
+    }
+
+    private Journal open() throws IOException {
+        checkpointBeforeApply.clear();
+        SiteFiles siteFiles = new SiteFiles(new PathResolver(site.toFile())) {
+            @Override
+            public Response apply(JSONObject command) throws IOException {
+                checkpointBeforeApply.put(command.getLong("seq"), readCheckpoint());
+                return super.apply(command);
+            }
+        };
+        return new Journal(journalFile, siteFiles);
+    }
+
+    private static JSONObject entry(String command, String filename, String content) {
+        JSONObject entry = new JSONObject();
+        entry.put("command", command);
+        entry.put("filename", filename);
+        if (content != null) {
+            entry.put("content", content);
+        }
+        return entry;
+    }
+
+    private static String line(JSONObject entry, long seq) {
+        return new JSONObject(entry.toString()).put("seq", seq).toString() + "\n";
+    }
+
+    private String read(String name) throws IOException {
+        return new String(Files.readAllBytes(site.resolve(name)), UTF_8);
+    }
+
+    private long readCheckpoint() throws IOException {
+        if (!checkpointFile.exists()) {
+            return 0;
+        }
+        byte[] bytes = Files.readAllBytes(checkpointFile.toPath());
+        return bytes.length == 8 ? ByteBuffer.wrap(bytes).getLong() : 0;
+    }
+
+    private void writeCheckpoint(long seq) throws IOException {
+        Files.write(checkpointFile.toPath(), ByteBuffer.allocate(8).putLong(seq).array());
+    }
+}
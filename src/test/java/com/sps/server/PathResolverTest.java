@@ -0,0 +1,257 @@
+package com.sps.server;
+
+import com.sps.server.PathResolver.ResolvedPath;
+import com.sps.server.model.StatusCode;
+import org.json.JSONObject;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PathResolverTest {
+    private static final int FUZZ_ITERATIONS = 20 * 1000;
+    private static final String[] FUZZ_SEGMENTS = {
+            "..", ".", "", "%2e%2e", "%2E%2e", ".%2e", "%2e", "%2f", "%2F", "%5c", "\\", "..%2f", "%2e%2e%2f",
+            "..\\", "%00", "%", "%2", "%zz", "%c0%ae", "%ff", "+", "sub", "in", "out", "outfile", "dangling",
+            "loop", "site-evil", "outside", "secret.html", "index.html", "page.html", "new.html",
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path root;
+    private PathResolver resolver;
+    private boolean symlinks;
+
+    /*
+     * <tmp>/site              the root
+     *       site/index.html
+     *       site/sub/page.html
+     *       site/in         -> sub                       (stays inside)
+     *       site/out        -> ../outside                (leaves the root)
+     *       site/outfile    -> ../outside/secret.html    (leaves the root)
+     *       site/dangling   -> missing
+     *       site/sub/loop   -> ..                        (back to the root)
+     * <tmp>/site-evil/secret.html                        (shares the root's prefix)
+     * <tmp>/outside/secret.html
+     */
+    @Before
+    public void setUp() throws IOException {
+        Path tmp = folder.getRoot().toPath().toRealPath();
+        Path site = Files.createDirectory(tmp.resolve("site"));
+        Files.write(site.resolve("index.html"), "index".getBytes());
+        Files.createDirectory(site.resolve("sub"));
+        Files.write(site.resolve("sub/page.html"), "page".getBytes());
+        Files.createDirectory(tmp.resolve("site-evil"));
+        Files.write(tmp.resolve("site-evil/secret.html"), "secret".getBytes());
+        Files.createDirectory(tmp.resolve("outside"));
+        Files.write(tmp.resolve("outside/secret.html"), "secret".getBytes());
+        try {
+            Files.createSymbolicLink(site.resolve("in"), Paths.get("sub"));
+            Files.createSymbolicLink(site.resolve("out"), Paths.get("../outside"));
+            Files.createSymbolicLink(site.resolve("outfile"), Paths.get("../outside/secret.html"));
+            Files.createSymbolicLink(site.resolve("dangling"), Paths.get("missing"));
+            Files.createSymbolicLink(site.resolve("sub/loop"), Paths.get(".."));
+            symlinks = true;
+        } catch (IOException | UnsupportedOperationException e) {
+            symlinks = false;
+        }
+        resolver = new PathResolver(site.toFile());
+        root = resolver.getRoot();
+    }
+
+    @Test
+    public void resolvesFilesInsideRoot() throws IOException {
+        ResolvedPath index = resolver.lookup("/index.html").get();
+        assertEquals(root.resolve("index.html"), index.getPath());
+        assertTrue(index.isRegularFile());
+        assertTrue(resolver.lookup("/sub/page.html").get().isRegularFile());
+        assertTrue(resolver.lookup("/sub/../index.html").get().isRegularFile());
+
+        ResolvedPath missing = resolver.resolve("sub/new.html").get();
+        assertFalse(missing.isExists());
+        assertEquals(root.resolve("sub/new.html"), missing.getPath());
+    }
+
+    @Test
+    public void rejectsDotDot() throws IOException {
+        assertFalse(resolver.lookup("/../outside/secret.html").isPresent());
+        assertFalse(resolver.lookup("/sub/../../outside/secret.html").isPresent());
+        assertFalse(resolver.resolve("../outside/secret.html").isPresent());
+        assertFalse(resolver.resolve("sub/../../outside").isPresent());
+        assertFalse(resolver.resolve("..").isPresent());
+    }
+
+    @Test
+    public void rejectsEncodedDotDotAndSlash() throws IOException {
+        assertFalse(resolver.lookup("/%2e%2e/outside/secret.html").isPresent());
+        assertFalse(resolver.lookup("/%2E%2E%2Foutside%2Fsecret.html").isPresent());
+        assertFalse(resolver.lookup("/sub/..%2f..%2foutside/secret.html").isPresent());
+        assertFalse(resolver.lookup("/.%2e/outside/secret.html").isPresent());
+        // overlong utf-8 for '.'
+        assertFalse(resolver.lookup("/%c0%ae%c0%ae/outside/secret.html").isPresent());
+    }
+
+    @Test
+    public void rejectsSiblingSharingRootPrefix() throws IOException {
+        assertFalse(resolver.resolve("../site-evil/secret.html").isPresent());
+        assertFalse(resolver.lookup("/../site-evil/secret.html").isPresent());
+        assertFalse(resolver.lookup("/%2e%2e%2fsite-evil%2fsecret.html").isPresent());
+    }
+
+    @Test
+    public void rejectsNul() throws IOException {
+        assertFalse(resolver.resolve("index.html\0.txt").isPresent());
+        assertFalse(resolver.lookup("/index.html%00.txt").isPresent());
+    }
+
+    @Test
+    public void rejectsMalformedEscapes() throws IOException {
+        assertFalse(resolver.lookup("/%").isPresent());
+        assertFalse(resolver.lookup("/index.html%2").isPresent());
+        assertFalse(resolver.lookup("/%zzindex.html").isPresent());
+        assertFalse(resolver.lookup("/%ff").isPresent());
+    }
+
+    @Test
+    public void leavesPlusAlone() {
+        assertEquals(Optional.of("a+b c"), PathResolver.percentDecode("a+b%20c"));
+    }
+
+    @Test
+    public void followsSymlinksOnlyInsideRoot() throws IOException {
+        Assume.assumeTrue(symlinks);
+        ResolvedPath throughLink = resolver.lookup("/in/page.html").get();
+        assertTrue(throughLink.isRegularFile());
+        assertEquals(root.resolve("in/page.html"), throughLink.getPath());
+        assertTrue(resolver.lookup("/sub/loop/index.html").get().isRegularFile());
+
+        assertFalse(resolver.lookup("/out/secret.html").isPresent());
+        assertFalse(resolver.lookup("/outfile").isPresent());
+        assertFalse(resolver.resolve("out/new.html").isPresent());
+        assertFalse(resolver.resolve("out").isPresent());
+        assertFalse(resolver.lookup("/dangling").isPresent());
+        assertFalse(resolver.resolve("dangling/new.html").isPresent());
+    }
+
+    @Test
+    public void lookupSeesChangesMadeThroughSiteFiles() throws IOException {
+        SiteFiles siteFiles = new SiteFiles(resolver);
+        assertFalse(resolver.lookup("/sub/new.html").get().isExists());
+
+        assertEquals(StatusCode.OK, siteFiles.apply(command("create", "sub/new.html")).getStatus());
+        ResolvedPath created = resolver.lookup("/sub/new.html").get();
+        assertTrue(created.isExists());
+        assertTrue(created.isRegularFile());
+
+        assertEquals(StatusCode.OK, siteFiles.apply(command("delete", "sub/new.html")).getStatus());
+        assertFalse(resolver.lookup("/sub/new.html").get().isExists());
+    }
+
+    @Test
+    public void lookupRacingCreateDoesNotCacheStaleMiss() throws IOException {
+        SiteFiles[] siteFiles = new SiteFiles[1];
+        PathResolver racing = new PathResolver(root.toFile()) {
+            private boolean raced;
+
+            @Override
+            public Optional<ResolvedPath> resolve(String name) throws IOException {
+                Optional<ResolvedPath> resolved = super.resolve(name);
+                if (!raced) {
+                    // the create, and its invalidate, complete after the miss was resolved but before it is cached
+                    raced = true;
+                    assertEquals(StatusCode.OK, siteFiles[0].apply(command("create", name)).getStatus());
+                }
+                return resolved;
+            }
+        };
+        siteFiles[0] = new SiteFiles(racing);
+        assertFalse(racing.lookup("/new.html").get().isExists());
+        assertTrue(racing.lookup("/new.html").get().isExists());
+    }
+
+    @Test
+    public void listingFollowsSymlinksOnlyInsideRoot() throws IOException {
+        Assume.assumeTrue(symlinks);
+        JSONObject listing = new SiteFiles(resolver).list();
+        // out, outfile and dangling are left out, and sub/loop would lead back into the root being listed
+        assertEquals(new HashSet<>(Arrays.asList("index.html", "sub", "in")), listing.keySet());
+        assertEquals(Collections.singleton("page.html"), listing.getJSONObject("sub").keySet());
+        assertEquals(Collections.singleton("page.html"), listing.getJSONObject("in").keySet());
+    }
+
+    @Test
+    public void fuzzedPathsNeverLeaveRoot() throws IOException {
+        Random random = new Random(0x5e5);
+        for (int i = 0; i < FUZZ_ITERATIONS; ++i) {
+            String name = randomPath(random);
+            assertInsideRoot(name, resolver.lookup("/" + name));
+            assertInsideRoot(name, resolver.resolve(name));
+            Optional<String> decoded = PathResolver.percentDecode(name);
+            if (decoded.isPresent()) {
+                assertInsideRoot(name, resolver.resolve(decoded.get()));
+            }
+        }
+    }
+
+    private static JSONObject command(String command, String filename) {
+        JSONObject json = new JSONObject();
+        json.put("command", command);
+        json.put("filename", filename);
+        return json;
+    }
+
+    private static String randomPath(Random random) {
+        StringBuilder name = new StringBuilder();
+        int segments = 1 + random.nextInt(8);
+        for (int i = 0; i < segments; ++i) {
+            if (i > 0) {
+                name.append(random.nextInt(10) == 0 ? "\\" : "/");
+            }
+            if (random.nextInt(8) == 0) {
+                name.append((char) (0x20 + random.nextInt(0x60)));
+            } else {
+                name.append(FUZZ_SEGMENTS[random.nextInt(FUZZ_SEGMENTS.length)]);
+            }
+        }
+        return name.toString();
+    }
+
+    /**
+     * Neither the lexical path handed back nor where it really leads (for as much of it as exists) may be
+     * outside the root.
+     */
+    private void assertInsideRoot(String name, Optional<ResolvedPath> resolved) throws IOException {
+        if (!resolved.isPresent()) {
+            return;
+        }
+        Path path = resolved.get().getPath();
+        assertTrue(name + " resolved to " + path, path.startsWith(root));
+        Path existing = path;
+        while (!Files.exists(existing, LinkOption.NOFOLLOW_LINKS)) {
+            existing = existing.getParent();
+        }
+        Path real = existing.toRealPath();
+        assertTrue(name + " really leads to " + real, real.startsWith(root));
+        assertEquals(name, resolved.get().isExists(), Files.exists(path, LinkOption.NOFOLLOW_LINKS));
+        if (resolved.get().isRegularFile()) {
+            assertTrue(name, path.toRealPath().startsWith(root));
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.sps.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a journaling leader in this JVM and, where a follower is needed, the follower as a second process.
+ */
+public class ReplicationTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int THREADS = 4;
+    private static final long TIMEOUT_MILLIS = 10 * 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path leaderRoot;
+    private Server leader;
+    private Thread leaderThread;
+    private int leaderPort;
+    private Process follower;
+
+    @Before
+    public void setUp() throws Exception {
+        leaderRoot = folder.newFolder("leader").toPath();
+        Files.write(leaderRoot.resolve("index.html"), "hello".getBytes(UTF_8));
+        leaderPort = freePort();
+        leader = Server.builder()
+                .rootFile(leaderRoot.toFile())
+                .port(leaderPort)
+                .threads(THREADS)
+                .journalFile(new File(folder.getRoot(), "leader.journal"))
+                .build();
+        leaderThread = new Thread(leader, "leader");
+        leaderThread.start();
+        awaitListening(leaderPort);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (follower != null) {
+            follower.destroy();
+            follower.waitFor();
+        }
+        leader.stop();
+        leaderThread.join(TIMEOUT_MILLIS);
+    }
+
+    @Test
+    public void followerInSecondProcessReplaysLeader() throws Exception {
+        // a follower starts from a copy of the leader's site as it was when the journal was created
+        Path followerRoot = folder.newFolder("follower").toPath();
+        Files.write(followerRoot.resolve("index.html"), "hello".getBytes(UTF_8));
+        int followerPort = freePort();
+        ProcessBuilder builder = new ProcessBuilder(
+                new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"),
+                CommandLineInterface.class.getName());
+        Map<String, String> env = builder.environment();
+        env.put("SPS_WEBSITE_ROOT_DIR", followerRoot.toString());
+        env.put("SPS_PORT", Integer.toString(followerPort));
+        env.put("SPS_THREADS", Integer.toString(THREADS));
+        env.put("SPS_JOURNAL_FILE", new File(folder.getRoot(), "follower.journal").getPath());
+        env.put("SPS_LEADER_URL", "http://localhost:" + leaderPort + "/");
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(new File(folder.getRoot(), "follower.log"));
+        follower = builder.start();
+        awaitListening(followerPort);
+
+        assertEquals(200, post(leaderPort, "{\"command\":\"create\",\"filename\":\"dir/new.html\"}").status);
+        assertEquals(200, post(leaderPort, "{\"command\":\"edit\",\"filename\":\"dir/new.html\",\"content\":\"new\"}").status);
+        assertEquals(200, post(leaderPort, "{\"command\":\"edit\",\"filename\":\"index.html\",\"content\":\"edited\"}").status);
+        assertEquals(200, post(leaderPort, "{\"command\":\"create\",\"filename\":\"gone.html\"}").status);
+        assertEquals(200, post(leaderPort, "{\"command\":\"delete\",\"filename\":\"gone.html\"}").status);
+
+        awaitFile(followerRoot.resolve("dir/new.html"), "new");
+        awaitFile(followerRoot.resolve("index.html"), "edited");
+        assertFalse(Files.exists(followerRoot.resolve("gone.html")));
+        assertEquals("edited", get(followerPort, "/index.html"));
+
+        Result refused = post(followerPort, "{\"command\":\"edit\",\"filename\":\"index.html\",\"content\":\"local\"}");
+        assertEquals(403, refused.status);
+        assertEquals("edited", new String(Files.readAllBytes(followerRoot.resolve("index.html")), UTF_8));
+    }
+
+    @Test
+    public void journalPollRejectsNegativePosition() throws Exception {
+        assertEquals(400, post(leaderPort, "{\"command\":\"journal\",\"after\":-5}").status);
+        Result result = post(leaderPort, "{\"command\":\"journal\",\"after\":0}");
+        assertEquals(200, result.status);
+        assertEquals("{\"entries\":[]}", result.body);
+    }
+
+    @Test
+    public void journalPollsLeaveWorkersFree() throws Exception {
+        // one poll per request thread, each waiting for an entry that never comes
+        ExecutorService pollers = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Result>> polls = new ArrayList<>();
+            for (int i = 0; i < THREADS; ++i) {
+                polls.add(pollers.submit(() -> post(leaderPort, "{\"command\":\"journal\",\"after\":0}")));
+            }
+            // give the polls time to reach the leader's request threads
+            Thread.sleep(200);
+            long started = System.currentTimeMillis();
+            assertEquals("hello", get(leaderPort, "/index.html"));
+            long elapsed = System.currentTimeMillis() - started;
+            assertTrue("GET took " + elapsed + "ms", elapsed < JournalFollower.LEADER_WAIT_MILLIS / 2);
+            for (Future<Result> poll : polls) {
+                assertEquals(200, poll.get().status);
+            }
+        } finally {
+            pollers.shutdown();
+        }
+    }
+
+    private static class Result {
+        final int status;
+        final String body;
+
+        Result(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private static Result post(int port, String json) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + "/").openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            connection.setReadTimeout((int) TIMEOUT_MILLIS);
+            connection.setDoOutput(true);
+            try (OutputStream os = connection.getOutputStream()) {
+                os.write(json.getBytes(UTF_8));
+            }
+            int status = connection.getResponseCode();
+            InputStream is = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            return new Result(status, is == null ? "" : readAll(is));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static String get(int port, String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+        try {
+            connection.setReadTimeout((int) TIMEOUT_MILLIS);
+            assertEquals(200, connection.getResponseCode());
+            return readAll(connection.getInputStream());
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static String readAll(InputStream is) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), UTF_8);
+        } finally {
+            is.close();
+        }
+    }
+
+    private static void awaitFile(Path file, String content) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            if (Files.isRegularFile(file) && content.equals(new String(Files.readAllBytes(file), UTF_8))) {
+                return;
+            }
+            Thread.sleep(50);
+        }
+        throw new AssertionError(file + " never became \"" + content + "\"");
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    private static void awaitListening(int port) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            try (Socket socket = new Socket("localhost", port)) {
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new AssertionError("server on port " + port + " did not start");
+    }
+}
@@ -0,0 +1,165 @@
+package com.sps.server.http2;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Decodes the header block examples of RFC 7541 appendix C. Each example is a sequence of blocks sharing one
+ * dynamic table, so later blocks only decode correctly if earlier ones indexed and evicted the right entries.
+ */
+public class HpackDecoderTest {
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private static final List<String> REQUEST_1 = Arrays.asList(
+            ":method: GET", ":scheme: http", ":path: /", ":authority: www.example.com");
+    private static final List<String> REQUEST_2 = Arrays.asList(
+            ":method: GET", ":scheme: http", ":path: /", ":authority: www.example.com", "cache-control: no-cache");
+    private static final List<String> REQUEST_3 = Arrays.asList(
+            ":method: GET", ":scheme: https", ":path: /index.html", ":authority: www.example.com",
+            "custom-key: custom-value");
+
+    private static final List<String> RESPONSE_1 = Arrays.asList(
+            ":status: 302", "cache-control: private", "date: Mon, 21 Oct 2013 20:13:21 GMT",
+            "location: https://www.example.com");
+    private static final List<String> RESPONSE_2 = Arrays.asList(
+            ":status: 307", "cache-control: private", "date: Mon, 21 Oct 2013 20:13:21 GMT",
+            "location: https://www.example.com");
+    private static final List<String> RESPONSE_3 = Arrays.asList(
+            ":status: 200", "cache-control: private", "date: Mon, 21 Oct 2013 20:13:22 GMT",
+            "location: https://www.example.com", "content-encoding: gzip",
+            "set-cookie: foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1");
+
+    /** C.3, requests without huffman coding */
+    @Test
+    public void decodesRequestsWithoutHuffman() throws Http2Exception {
+        HpackDecoder decoder = new HpackDecoder(HeaderTable.DEFAULT_MAX_SIZE, 16 * 1024);
+        assertDecodes(decoder, REQUEST_1, "828684410f7777772e6578616d706c652e636f6d");
+        assertDecodes(decoder, REQUEST_2, "828684be58086e6f2d6361636865");
+        assertDecodes(decoder, REQUEST_3, "828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565");
+    }
+
+    /** C.4, the same requests with huffman coding */
+    @Test
+    public void decodesRequestsWithHuffman() throws Http2Exception {
+        HpackDecoder decoder = new HpackDecoder(HeaderTable.DEFAULT_MAX_SIZE, 16 * 1024);
+        assertDecodes(decoder, REQUEST_1, "828684418cf1e3c2e5f23a6ba0ab90f4ff");
+        assertDecodes(decoder, REQUEST_2, "828684be5886a8eb10649cbf");
+        assertDecodes(decoder, REQUEST_3, "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf");
+    }
+
+    /** C.6, responses with huffman coding and a 256 octet table, so entries get evicted */
+    @Test
+    public void decodesResponsesWithHuffmanAndEviction() throws Http2Exception {
+        HpackDecoder decoder = new HpackDecoder(256, 16 * 1024);
+        assertDecodes(decoder, RESPONSE_1, "488264025885aec3771a4b6196d07abe941054d444a8200595040b8166e082a62d1bff"
+                + "6e919d29ad171863c78f0b97c8e9ae82ae43d3");
+        assertDecodes(decoder, RESPONSE_2, "4883640effc1c0bf");
+        assertDecodes(decoder, RESPONSE_3, "88c16196d07abe941054d444a8200595040b8166e084a62d1bffc05a839bd9ab77ad94e7"
+                + "821dd7f2e6c7b335dfdfcd5b3960d5af27087f3672c1ab270fb5291f9587316065c003ed4ee5b1063d5007");
+    }
+
+    @Test
+    public void decodesHuffmanStrings() throws Http2Exception {
+        assertHuffman("www.example.com", "f1e3c2e5f23a6ba0ab90f4ff");
+        assertHuffman("no-cache", "a8eb10649cbf");
+        assertHuffman("custom-key", "25a849e95ba97d7f");
+        assertHuffman("custom-value", "25a849e95bb8e8b4bf");
+        assertHuffman("302", "6402");
+        assertHuffman("", "");
+    }
+
+    @Test
+    public void rejectsBadHuffmanPadding() {
+        // more than 7 bits of padding
+        assertHuffmanFails("f1e3c2e5f23a6ba0ab90f4ffff");
+        // padding that isn't the most significant bits of EOS
+        assertHuffmanFails("f1e3c2e5f23a6ba0ab90f4fe");
+    }
+
+    @Test
+    public void rejectsIndexOutOfRange() {
+        HpackDecoder decoder = new HpackDecoder(HeaderTable.DEFAULT_MAX_SIZE, 16 * 1024);
+        try {
+            // static table has 61 entries and the dynamic table is empty
+            decoder.decode(new byte[]{(byte) 0xbe}, 0, 1);
+            fail();
+        } catch (Http2Exception e) {
+            assertEquals(Http2Exception.COMPRESSION_ERROR, e.getErrorCode());
+        }
+    }
+
+    @Test
+    public void decodesWhatTheEncoderWrites() throws Http2Exception {
+        HpackEncoder encoder = new HpackEncoder();
+        HpackDecoder decoder = new HpackDecoder(HeaderTable.DEFAULT_MAX_SIZE, 16 * 1024);
+        List<String> first = Arrays.asList(":status: 200", "content-type: text/html; charset=UTF-8",
+                "content-length: 12", "set-cookie: a=b", "x-custom: one");
+        List<String> second = Arrays.asList(":status: 404", "content-type: text/html; charset=UTF-8",
+                "content-length: 0", "set-cookie: a=b", "x-custom: one");
+        for (List<String> headers : Arrays.asList(first, second, first)) {
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            encoder.encode(toPairs(headers), block);
+            assertEquals(headers, toLines(decoder.decode(block.toByteArray(), 0, block.size())));
+        }
+
+        encoder.setMaxTableSize(0);
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        encoder.encode(toPairs(first), block);
+        assertEquals(first, toLines(decoder.decode(block.toByteArray(), 0, block.size())));
+    }
+
+    private static void assertDecodes(HpackDecoder decoder, List<String> expected, String hex)
+            throws Http2Exception {
+        byte[] block = fromHex(hex);
+        assertEquals(expected, toLines(decoder.decode(block, 0, block.length)));
+    }
+
+    private static void assertHuffman(String expected, String hex) throws Http2Exception {
+        byte[] encoded = fromHex(hex);
+        assertArrayEquals(expected.getBytes(ISO_8859_1), Huffman.decode(encoded, 0, encoded.length));
+    }
+
+    private static void assertHuffmanFails(String hex) {
+        byte[] encoded = fromHex(hex);
+        try {
+            Huffman.decode(encoded, 0, encoded.length);
+            fail("decoded " + hex);
+        } catch (Http2Exception e) {
+            assertEquals(Http2Exception.COMPRESSION_ERROR, e.getErrorCode());
+        }
+    }
+
+    private static List<String> toLines(List<String[]> headers) {
+        List<String> lines = new ArrayList<>();
+        for (String[] header : headers) {
+            lines.add(header[0] + ": " + header[1]);
+        }
+        return lines;
+    }
+
+    private static List<String[]> toPairs(List<String> lines) {
+        List<String[]> headers = new ArrayList<>();
+        for (String line : lines) {
+            int colon = line.indexOf(": ", 1);
+            headers.add(new String[]{line.substring(0, colon), line.substring(colon + 2)});
+        }
+        return headers;
+    }
+
+    static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
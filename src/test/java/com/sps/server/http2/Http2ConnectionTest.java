@@ -0,0 +1,79 @@
+package com.sps.server.http2;
+
+import com.sps.server.http2.Http2TestClient.StreamResult;
+import com.sps.server.model.Response;
+import com.sps.server.model.StatusCode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.PushbackInputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives a single Http2Connection whose handler holds every request until the test releases it.
+ */
+public class Http2ConnectionTest {
+    private final CountDownLatch release = new CountDownLatch(1);
+    private ExecutorService executor;
+    private Socket serverSide;
+    private Http2TestClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        executor = Executors.newFixedThreadPool(4);
+        try (ServerSocket listener = new ServerSocket(0)) {
+            client = Http2TestClient.connect(listener.getLocalPort());
+            serverSide = listener.accept();
+        }
+        PushbackInputStream is = new PushbackInputStream(serverSide.getInputStream(), Http2Connection.PREFACE_LENGTH);
+        assertTrue(Http2Connection.readPreface(is));
+        Http2Connection connection = new Http2Connection(serverSide, is, serverSide.getOutputStream(), executor,
+                4, request -> {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return new Response(StatusCode.OK, request.getUrl().getBytes());
+                });
+        connection.start();
+        new Thread(connection, "http2-connection").start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        release.countDown();
+        executor.shutdownNow();
+        client.close();
+        serverSide.close();
+    }
+
+    @Test
+    public void resetStreamGetsNoResponse() throws Exception {
+        int reset = client.request("GET", "/reset", null);
+        client.reset(reset);
+        // once the PING is answered the server has seen the RST_STREAM
+        client.ping();
+        int kept = client.request("GET", "/kept", null);
+        release.countDown();
+
+        StreamResult result = client.await(kept);
+        assertEquals("200", result.header(":status"));
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        // anything written for the reset stream would have arrived before this PING's ACK
+        client.ping();
+        assertTrue(client.get(reset).headers.isEmpty());
+        assertEquals(0, client.get(reset).body.size());
+    }
+}
@@ -0,0 +1,199 @@
+package com.sps.server.http2;
+
+import com.sps.server.Server;
+import com.sps.server.http2.Http2TestClient.StreamResult;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a Server on a local port and talks HTTP/2 to it frame by frame.
+ */
+public class Http2ServerTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int THREADS = 4;
+    private static final int FILES = 50;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Server server;
+    private Thread serverThread;
+    private int port;
+
+    @Before
+    public void setUp() throws Exception {
+        File root = folder.getRoot();
+        Files.write(new File(root, "index.html").toPath(), "hello".getBytes(UTF_8));
+        for (int i = 0; i < FILES; ++i) {
+            Files.write(new File(root, "f" + i + ".html").toPath(), ("file " + i).getBytes(UTF_8));
+        }
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        server = Server.builder()
+                .rootFile(root)
+                .port(port)
+                .threads(THREADS)
+                .build();
+        serverThread = new Thread(server, "server");
+        serverThread.start();
+        awaitListening();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        server.stop();
+        serverThread.join(10 * 1000);
+    }
+
+    @Test
+    public void getWithPriorKnowledge() throws Exception {
+        try (Http2TestClient client = Http2TestClient.connect(port)) {
+            StreamResult result = client.await(client.request("GET", "/index.html", null));
+            assertEquals("200", result.header(":status"));
+            assertEquals("5", result.header("content-length"));
+            assertEquals("hello", body(result));
+
+            result = client.await(client.request("GET", "/missing.html", null));
+            assertEquals("404", result.header(":status"));
+        }
+    }
+
+    @Test
+    public void upgradeFromHttp11() throws Exception {
+        try (Http2TestClient client = Http2TestClient.upgrade(port, "/index.html")) {
+            StreamResult upgraded = client.await(1);
+            assertEquals("200", upgraded.header(":status"));
+            assertEquals("hello", body(upgraded));
+
+            StreamResult next = client.await(client.request("GET", "/f1.html", null));
+            assertEquals("200", next.header(":status"));
+            assertEquals("file 1", body(next));
+        }
+    }
+
+    @Test
+    public void concurrentStreamsOnOneConnection() throws Exception {
+        try (Http2TestClient client = Http2TestClient.connect(port)) {
+            List<Integer> streamIds = new ArrayList<>();
+            for (int i = 0; i < FILES; ++i) {
+                streamIds.add(client.request("GET", "/f" + i + ".html", null));
+            }
+            for (int i = 0; i < FILES; ++i) {
+                StreamResult result = client.await(streamIds.get(i));
+                assertEquals("200", result.header(":status"));
+                assertEquals("file " + i, body(result));
+            }
+        }
+    }
+
+    @Test
+    public void postCommand() throws Exception {
+        try (Http2TestClient client = Http2TestClient.connect(port)) {
+            StreamResult result = client.await(
+                    client.request("POST", "/", "{\"command\":\"list\"}".getBytes(UTF_8)));
+            assertEquals("200", result.header(":status"));
+            assertTrue(body(result), body(result).contains("\"index.html\""));
+        }
+    }
+
+    @Test
+    public void postTooLarge() throws Exception {
+        try (Http2TestClient client = Http2TestClient.connect(port)) {
+            StreamResult result = client.await(client.request("POST", "/", new byte[300 * 1024]));
+            assertEquals("413", result.header(":status"));
+
+            // the connection is still usable
+            result = client.await(client.request("GET", "/index.html", null));
+            assertEquals("200", result.header(":status"));
+        }
+    }
+
+    @Test
+    public void idleConnectionsLeaveWorkersFree() throws Exception {
+        List<Http2TestClient> idle = new ArrayList<>();
+        try {
+            for (int i = 0; i < 4 * THREADS; ++i) {
+                Http2TestClient client = Http2TestClient.connect(port);
+                idle.add(client);
+                // wait until the server has started the connection and let go of the worker
+                client.ping();
+            }
+            HttpURLConnection connection =
+                    (HttpURLConnection) new URL("http://localhost:" + port + "/index.html").openConnection();
+            connection.setReadTimeout(10 * 1000);
+            assertEquals(200, connection.getResponseCode());
+            try (InputStream is = connection.getInputStream()) {
+                assertEquals('h', is.read());
+            }
+
+            // past the limit, new HTTP/2 connections are turned away rather than queued
+            try (Http2TestClient refused = Http2TestClient.connect(port)) {
+                assertEquals(Http2Exception.NO_ERROR, refused.awaitGoAway());
+            }
+        } finally {
+            for (Http2TestClient client : idle) {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void zeroWindowClientLeavesThreadsForOthers() throws Exception {
+        try (Http2TestClient stalled = Http2TestClient.connect(port, 0)) {
+            // more requests than there are stream threads, none of which can be answered
+            List<Integer> stalledIds = new ArrayList<>();
+            for (int i = 0; i < THREADS; ++i) {
+                stalledIds.add(stalled.request("GET", "/index.html", null));
+            }
+            stalled.ping();
+
+            try (Http2TestClient client = Http2TestClient.connect(port)) {
+                StreamResult result = client.await(client.request("GET", "/f1.html", null));
+                assertEquals("200", result.header(":status"));
+                assertEquals("file 1", body(result));
+            }
+
+            // the first to run give up on the window and cancel their streams
+            for (int streamId : stalledIds.subList(0, THREADS / 2)) {
+                StreamResult result = stalled.await(streamId);
+                assertEquals(Http2Exception.CANCEL, result.resetCode);
+                assertEquals(0, result.body.size());
+            }
+        }
+    }
+
+    private static String body(StreamResult result) {
+        return new String(result.body.toByteArray(), UTF_8);
+    }
+
+    private void awaitListening() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10 * 1000;
+        while (System.currentTimeMillis() < deadline) {
+            try (Socket socket = new Socket("localhost", port)) {
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new AssertionError("server did not start");
+    }
+}
@@ -0,0 +1,371 @@
+package com.sps.server.http2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Just enough of an HTTP/2 client to drive the server frame by frame: it sends requests, honours the server's
+ * flow control windows, and collects whatever arrives on each stream.
+ */
+class Http2TestClient implements Closeable {
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(ISO_8859_1);
+    private static final long TIMEOUT_MILLIS = 10 * 1000;
+    private static final int MAX_FRAME_SIZE = 16 * 1024;
+
+    static final int DATA = 0x0;
+    static final int HEADERS = 0x1;
+    static final int RST_STREAM = 0x3;
+    static final int SETTINGS = 0x4;
+    static final int PING = 0x6;
+    static final int GOAWAY = 0x7;
+    static final int WINDOW_UPDATE = 0x8;
+    static final int CONTINUATION = 0x9;
+    static final int FLAG_END_STREAM = 0x1;
+    static final int FLAG_ACK = 0x1;
+    static final int FLAG_END_HEADERS = 0x4;
+    static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+
+    static class StreamResult {
+        final List<String[]> headers = new ArrayList<>();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        boolean ended;
+        int resetCode = -1;
+
+        String header(String name) {
+            for (String[] header : headers) {
+                if (header[0].equals(name)) {
+                    return header[1];
+                }
+            }
+            return null;
+        }
+    }
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final HpackEncoder encoder = new HpackEncoder();
+    private final HpackDecoder decoder = new HpackDecoder(HeaderTable.DEFAULT_MAX_SIZE, 64 * 1024);
+    private final Thread reader;
+
+    // all guarded by this
+    private final Map<Integer, StreamResult> streams = new HashMap<>();
+    private final Map<Integer, Long> sendWindows = new HashMap<>();
+    private long connectionSendWindow = 65535;
+    private int pingAcks;
+    private int goAwayCode = -1;
+    private boolean disconnected;
+    private final ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+    private int nextStreamId = 1;
+
+    /**
+     * Connect with prior knowledge.
+     */
+    static Http2TestClient connect(int port) throws IOException {
+        return connect(port, new byte[0]);
+    }
+
+    /**
+     * Connect with prior knowledge, giving the server an initial window of this size for each stream.
+     */
+    static Http2TestClient connect(int port, int initialWindowSize) throws IOException {
+        byte[] settings = new byte[6];
+        settings[1] = SETTINGS_INITIAL_WINDOW_SIZE;
+        writeInt32(settings, 2, initialWindowSize);
+        return connect(port, settings);
+    }
+
+    private static Http2TestClient connect(int port, byte[] settings) throws IOException {
+        Socket socket = new Socket("localhost", port);
+        socket.getOutputStream().write(PREFACE);
+        Http2TestClient client = new Http2TestClient(socket, socket.getInputStream());
+        client.writeFrame(SETTINGS, 0, 0, settings);
+        return client;
+    }
+
+    /**
+     * Connect over HTTP/1.1 and upgrade to h2c with a GET for path, which becomes stream 1.
+     */
+    static Http2TestClient upgrade(int port, String path) throws IOException {
+        Socket socket = new Socket("localhost", port);
+        socket.setSoTimeout((int) TIMEOUT_MILLIS);
+        String request = "GET " + path + " HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "Connection: Upgrade, HTTP2-Settings\r\n"
+                + "Upgrade: h2c\r\n"
+                // SETTINGS_MAX_CONCURRENT_STREAMS = 100
+                + "HTTP2-Settings: AAMAAABk\r\n"
+                + "\r\n";
+        socket.getOutputStream().write(request.getBytes(ISO_8859_1));
+        InputStream is = socket.getInputStream();
+        String status = readLine(is);
+        if (!status.startsWith("HTTP/1.1 101")) {
+            throw new IOException("upgrade refused: " + status);
+        }
+        while (!readLine(is).isEmpty()) {
+            // skip the 101's headers
+        }
+        socket.getOutputStream().write(PREFACE);
+        Http2TestClient client = new Http2TestClient(socket, is);
+        client.writeFrame(SETTINGS, 0, 0, new byte[0]);
+        synchronized (client) {
+            client.streams.put(1, new StreamResult());
+            client.nextStreamId = 3;
+        }
+        return client;
+    }
+
+    private Http2TestClient(Socket socket, InputStream is) throws IOException {
+        this.socket = socket;
+        this.socket.setSoTimeout(0);
+        this.in = new DataInputStream(is);
+        this.out = socket.getOutputStream();
+        this.reader = new Thread(this::readFrames, "http2-test-client");
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    /**
+     * Send a request and return its stream id. The body, if any, is sent as flow control allows.
+     */
+    int request(String method, String path, byte[] body) throws IOException, InterruptedException {
+        List<String[]> headers = new ArrayList<>();
+        headers.add(new String[]{":method", method});
+        headers.add(new String[]{":scheme", "http"});
+        headers.add(new String[]{":path", path});
+        headers.add(new String[]{":authority", "localhost"});
+        int streamId;
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        synchronized (this) {
+            streamId = nextStreamId;
+            nextStreamId += 2;
+            streams.put(streamId, new StreamResult());
+            sendWindows.put(streamId, 65535L);
+            encoder.encode(headers, block);
+            writeFrame(HEADERS, FLAG_END_HEADERS | (body == null ? FLAG_END_STREAM : 0), streamId,
+                    block.toByteArray());
+        }
+        if (body != null) {
+            int offset = 0;
+            do {
+                int length = reserveWindow(streamId, body.length - offset);
+                boolean last = offset + length == body.length;
+                byte[] chunk = new byte[length];
+                System.arraycopy(body, offset, chunk, 0, length);
+                writeFrame(DATA, last ? FLAG_END_STREAM : 0, streamId, chunk);
+                offset += length;
+            } while (offset < body.length);
+        }
+        return streamId;
+    }
+
+    void reset(int streamId) throws IOException {
+        writeFrame(RST_STREAM, 0, streamId, new byte[]{0, 0, 0, (byte) Http2Exception.CANCEL});
+    }
+
+    /**
+     * Send a PING and wait for its ACK, by which time the server has handled every frame sent before it.
+     */
+    void ping() throws IOException, InterruptedException {
+        int expected;
+        synchronized (this) {
+            expected = pingAcks + 1;
+        }
+        writeFrame(PING, 0, 0, new byte[8]);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        synchronized (this) {
+            while (pingAcks < expected) {
+                waitUntil(deadline, "PING ack");
+            }
+        }
+    }
+
+    /**
+     * Wait for the stream to end or be reset.
+     */
+    synchronized StreamResult await(int streamId) throws InterruptedException, IOException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        StreamResult result = streams.get(streamId);
+        while (!result.ended && result.resetCode == -1) {
+            waitUntil(deadline, "stream " + streamId);
+        }
+        return result;
+    }
+
+    synchronized StreamResult get(int streamId) {
+        return streams.get(streamId);
+    }
+
+    /**
+     * Wait for the server to say GOAWAY or hang up, returning the GOAWAY error code or -1.
+     */
+    synchronized int awaitGoAway() throws InterruptedException, IOException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (goAwayCode == -1 && !disconnected) {
+            waitUntil(deadline, "GOAWAY");
+        }
+        return goAwayCode;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    private synchronized int reserveWindow(int streamId, int wanted) throws InterruptedException, IOException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (true) {
+            long available = Math.min(connectionSendWindow, sendWindows.get(streamId));
+            if (available > 0) {
+                int length = (int) Math.min(Math.min(available, wanted), MAX_FRAME_SIZE);
+                connectionSendWindow -= length;
+                sendWindows.put(streamId, sendWindows.get(streamId) - length);
+                return length;
+            }
+            waitUntil(deadline, "send window on stream " + streamId);
+        }
+    }
+
+    private void waitUntil(long deadline, String what) throws InterruptedException, IOException {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            throw new IOException("timed out waiting for " + what);
+        }
+        wait(remaining);
+    }
+
+    private void readFrames() {
+        try {
+            while (true) {
+                byte[] header = new byte[9];
+                in.readFully(header);
+                int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+                int type = header[3] & 0xff;
+                int flags = header[4] & 0xff;
+                int streamId = readInt32(header, 5) & 0x7fffffff;
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                handleFrame(type, flags, streamId, payload);
+            }
+        } catch (IOException e) {
+            // EOF or closed
+        } finally {
+            synchronized (this) {
+                disconnected = true;
+                notifyAll();
+            }
+        }
+    }
+
+    private synchronized void handleFrame(int type, int flags, int streamId, byte[] payload) throws IOException {
+        switch (type) {
+            case DATA:
+                streams.get(streamId).body.write(payload, 0, payload.length);
+                if (payload.length > 0) {
+                    // hand the window straight back
+                    writeWindowUpdate(0, payload.length);
+                    writeWindowUpdate(streamId, payload.length);
+                }
+                break;
+            case HEADERS:
+            case CONTINUATION:
+                headerBlock.write(payload, 0, payload.length);
+                if ((flags & FLAG_END_HEADERS) != 0) {
+                    byte[] block = headerBlock.toByteArray();
+                    headerBlock.reset();
+                    streams.get(streamId).headers.addAll(decoder.decode(block, 0, block.length));
+                }
+                break;
+            case RST_STREAM:
+                streams.get(streamId).resetCode = readInt32(payload, 0);
+                break;
+            case SETTINGS:
+                if ((flags & FLAG_ACK) == 0) {
+                    writeFrame(SETTINGS, FLAG_ACK, 0, new byte[0]);
+                }
+                break;
+            case PING:
+                if ((flags & FLAG_ACK) != 0) {
+                    ++pingAcks;
+                }
+                break;
+            case GOAWAY:
+                goAwayCode = readInt32(payload, 4);
+                break;
+            case WINDOW_UPDATE:
+                long increment = readInt32(payload, 0) & 0x7fffffff;
+                if (streamId == 0) {
+                    connectionSendWindow += increment;
+                } else if (sendWindows.containsKey(streamId)) {
+                    sendWindows.put(streamId, sendWindows.get(streamId) + increment);
+                }
+                break;
+            default:
+                break;
+        }
+        if ((type == DATA || type == HEADERS) && (flags & FLAG_END_STREAM) != 0) {
+            streams.get(streamId).ended = true;
+        }
+        notifyAll();
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException {
+        byte[] payload = new byte[4];
+        writeInt32(payload, 0, increment);
+        writeFrame(WINDOW_UPDATE, 0, streamId, payload);
+    }
+
+    void writeFrame(int type, int flags, int streamId, byte[] payload) throws IOException {
+        byte[] header = new byte[9];
+        header[0] = (byte) (payload.length >>> 16);
+        header[1] = (byte) (payload.length >>> 8);
+        header[2] = (byte) payload.length;
+        header[3] = (byte) type;
+        header[4] = (byte) flags;
+        writeInt32(header, 5, streamId);
+        synchronized (out) {
+            out.write(header);
+            out.write(payload);
+            out.flush();
+        }
+    }
+
+    private static String readLine(InputStream is) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = is.read()) != '\n') {
+            if (b == -1) {
+                throw new EOFException();
+            }
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+
+    private static void writeInt32(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static int readInt32(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xff) << 24) | ((buffer[offset + 1] & 0xff) << 16)
+                | ((buffer[offset + 2] & 0xff) << 8) | (buffer[offset + 3] & 0xff);
+    }
+}